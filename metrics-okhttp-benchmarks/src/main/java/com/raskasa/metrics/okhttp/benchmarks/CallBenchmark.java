@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.raskasa.metrics.okhttp.InstrumentedOkHttpClients;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares complete HTTP calls made through a raw {@link OkHttpClient} against the same client
+ * instrumented with {@link InstrumentedOkHttpClients}.
+ *
+ * <p>A local {@link MockWebServer} stands in for the network, so the absolute numbers are dominated
+ * by loopback I/O; the difference between the {@code raw} and {@code instrumented} runs is the cost
+ * of the instrumentation. Run with {@code -prof gc} to also report the bytes allocated per call:
+ *
+ * <pre>
+ * java -jar metrics-okhttp-benchmarks/target/benchmarks.jar CallBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallBenchmark {
+  @Param({"raw", "instrumented"})
+  public String client;
+
+  private MockWebServer server;
+  private OkHttpClient okHttpClient;
+  private Request request;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    final MockResponse response = new MockResponse().setBody("ok");
+    server = new MockWebServer();
+    server.setDispatcher(
+        new okhttp3.mockwebserver.Dispatcher() {
+          @Override
+          public MockResponse dispatch(RecordedRequest request) {
+            return response;
+          }
+        });
+    server.start();
+
+    // Don't let the dispatcher's default per-host limit throttle the async benchmarks.
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequests(256);
+    dispatcher.setMaxRequestsPerHost(256);
+    OkHttpClient rawClient = new OkHttpClient.Builder().dispatcher(dispatcher).build();
+
+    okHttpClient =
+        "instrumented".equals(client)
+            ? InstrumentedOkHttpClients.create(new MetricRegistry(), rawClient)
+            : rawClient;
+    request = new Request.Builder().url(server.url("/")).build();
+  }
+
+  /** The server keeps every request it receives; drop them so they don't accumulate. */
+  @TearDown(Level.Iteration)
+  public void drainRecordedRequests() throws InterruptedException {
+    while (server.takeRequest(0, TimeUnit.MILLISECONDS) != null) {
+      // Discard.
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    okHttpClient.dispatcher().executorService().shutdown();
+    okHttpClient.connectionPool().evictAll();
+    server.shutdown();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String sync() throws IOException {
+    return execute();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String syncContended() throws IOException {
+    return execute();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String async() throws Exception {
+    return enqueue();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String asyncContended() throws Exception {
+    return enqueue();
+  }
+
+  private String execute() throws IOException {
+    try (Response response = okHttpClient.newCall(request).execute()) {
+      return response.body().string();
+    }
+  }
+
+  private String enqueue() throws Exception {
+    final CompletableFuture<String> result = new CompletableFuture<>();
+    okHttpClient
+        .newCall(request)
+        .enqueue(
+            new Callback() {
+              @Override
+              public void onFailure(Call call, IOException e) {
+                result.completeExceptionally(e);
+              }
+
+              @Override
+              public void onResponse(Call call, Response response) throws IOException {
+                try (Response r = response) {
+                  result.complete(r.body().string());
+                }
+              }
+            });
+    return result.get();
+  }
+}
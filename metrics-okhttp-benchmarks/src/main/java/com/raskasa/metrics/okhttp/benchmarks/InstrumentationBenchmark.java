@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp.benchmarks;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.raskasa.metrics.okhttp.InstrumentedOkHttpClients;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Address;
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.Route;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the instrumentation in isolation from any I/O by driving the event listener, the
+ * interceptors and the gauges of an instrumented client directly.
+ *
+ * <p>The {@code raw} runs use the uninstrumented client's listener factory and pass-through
+ * interceptors, so the difference between the two is the per-call cost of the instrumentation. Run
+ * with {@code -prof gc} to also report the bytes allocated per call:
+ *
+ * <pre>
+ * java -jar metrics-okhttp-benchmarks/target/benchmarks.jar InstrumentationBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstrumentationBenchmark {
+  @Param({"raw", "instrumented"})
+  public String client;
+
+  private File cacheDirectory;
+  private OkHttpClient rawClient;
+  private MetricRegistry registry;
+  private EventListener.Factory eventListenerFactory;
+  private Interceptor applicationInterceptor;
+  private Interceptor networkInterceptor;
+  private Request request;
+  private Response response;
+  private Connection connection;
+  private InetSocketAddress address;
+  private List<InetAddress> addresses;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    cacheDirectory = Files.createTempDirectory("metrics-okhttp-benchmarks").toFile();
+    rawClient =
+        new OkHttpClient.Builder().cache(new Cache(cacheDirectory, 1024 * 1024)).build();
+    registry = new MetricRegistry();
+
+    if ("instrumented".equals(client)) {
+      OkHttpClient instrumented = InstrumentedOkHttpClients.create(registry, rawClient);
+      eventListenerFactory = instrumented.eventListenerFactory();
+      applicationInterceptor = instrumented.interceptors().get(0);
+      List<Interceptor> interceptors = instrumented.networkInterceptors();
+      networkInterceptor = interceptors.get(interceptors.size() - 1);
+    } else {
+      eventListenerFactory = rawClient.eventListenerFactory();
+      applicationInterceptor = chain -> chain.proceed(chain.request());
+      networkInterceptor = chain -> chain.proceed(chain.request());
+    }
+
+    request = new Request.Builder().url("https://example.com/").build();
+    response =
+        new Response.Builder()
+            .request(request)
+            .protocol(Protocol.HTTP_1_1)
+            .code(200)
+            .message("OK")
+            .body(ResponseBody.create("ok", (MediaType) null))
+            .build();
+    address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 443);
+    addresses = Collections.singletonList(address.getAddress());
+    Address routeAddress =
+        new Address(
+            request.url().host(),
+            request.url().port(),
+            rawClient.dns(),
+            rawClient.socketFactory(),
+            rawClient.sslSocketFactory(),
+            rawClient.hostnameVerifier(),
+            rawClient.certificatePinner(),
+            rawClient.proxyAuthenticator(),
+            null,
+            rawClient.protocols(),
+            rawClient.connectionSpecs(),
+            rawClient.proxySelector());
+    connection = new FakeConnection(new Route(routeAddress, Proxy.NO_PROXY, address));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    File[] files = cacheDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    cacheDirectory.delete();
+  }
+
+  /**
+   * The call of a benchmark thread. Like real calls, which never run on two threads at once, each
+   * thread has its own, so that the instrumentation's per-call state isn't shared between threads.
+   */
+  @State(Scope.Thread)
+  public static class ThreadCall {
+    Call call;
+
+    @Setup(Level.Trial)
+    public void setUp(InstrumentationBenchmark benchmark) {
+      call = benchmark.rawClient.newCall(benchmark.request);
+    }
+  }
+
+  /** A call that reuses a pooled connection: the common, steady-state case. */
+  @Benchmark
+  @Threads(1)
+  public EventListener pooledConnectionCall(ThreadCall threadCall) throws IOException {
+    return pooledConnectionCallEvents(threadCall.call);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public EventListener pooledConnectionCallContended(ThreadCall threadCall) throws IOException {
+    return pooledConnectionCallEvents(threadCall.call);
+  }
+
+  /** A call that resolves the host and dials a new connection. */
+  @Benchmark
+  @Threads(1)
+  public EventListener newConnectionCall(ThreadCall threadCall) throws IOException {
+    Call call = threadCall.call;
+    EventListener listener = eventListenerFactory.create(call);
+    listener.callStart(call);
+    applicationInterceptor.intercept(new FakeChain(call));
+    listener.proxySelectStart(call, request.url());
+    listener.proxySelectEnd(call, request.url(), Collections.singletonList(Proxy.NO_PROXY));
+    listener.dnsStart(call, "example.com");
+    listener.dnsEnd(call, "example.com", addresses);
+    listener.connectStart(call, address, Proxy.NO_PROXY);
+    listener.secureConnectStart(call);
+    listener.secureConnectEnd(call, null);
+    listener.connectEnd(call, address, Proxy.NO_PROXY, Protocol.HTTP_1_1);
+    exchangeEvents(call, listener);
+    return listener;
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Response networkInterceptor(ThreadCall threadCall) throws IOException {
+    return networkInterceptor.intercept(new FakeChain(threadCall.call));
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Response networkInterceptorContended(ThreadCall threadCall) throws IOException {
+    return networkInterceptor.intercept(new FakeChain(threadCall.call));
+  }
+
+  /** Polls every gauge, the way a reporter would on each tick. */
+  @Benchmark
+  @Threads(1)
+  public void pollGauges(Blackhole blackhole) {
+    for (Gauge<?> gauge : registry.getGauges().values()) {
+      blackhole.consume(gauge.getValue());
+    }
+  }
+
+  private EventListener pooledConnectionCallEvents(Call call) throws IOException {
+    EventListener listener = eventListenerFactory.create(call);
+    listener.callStart(call);
+    applicationInterceptor.intercept(new FakeChain(call));
+    exchangeEvents(call, listener);
+    return listener;
+  }
+
+  private void exchangeEvents(Call call, EventListener listener) {
+    listener.connectionAcquired(call, connection);
+    listener.requestHeadersStart(call);
+    listener.requestHeadersEnd(call, request);
+    listener.responseHeadersStart(call);
+    listener.responseHeadersEnd(call, response);
+    listener.responseBodyStart(call);
+    listener.responseBodyEnd(call, 2L);
+    listener.connectionReleased(call, connection);
+    listener.callEnd(call);
+  }
+
+  /** Answers every request immediately with the same canned response. */
+  private final class FakeChain implements Interceptor.Chain {
+    private final Call call;
+
+    FakeChain(Call call) {
+      this.call = call;
+    }
+
+    @Override
+    public Request request() {
+      return request;
+    }
+
+    @Override
+    public Response proceed(Request request) {
+      return response;
+    }
+
+    @Override
+    public Connection connection() {
+      return connection;
+    }
+
+    @Override
+    public Call call() {
+      return call;
+    }
+
+    @Override
+    public int connectTimeoutMillis() {
+      return 10_000;
+    }
+
+    @Override
+    public Interceptor.Chain withConnectTimeout(int timeout, TimeUnit unit) {
+      return this;
+    }
+
+    @Override
+    public int readTimeoutMillis() {
+      return 10_000;
+    }
+
+    @Override
+    public Interceptor.Chain withReadTimeout(int timeout, TimeUnit unit) {
+      return this;
+    }
+
+    @Override
+    public int writeTimeoutMillis() {
+      return 10_000;
+    }
+
+    @Override
+    public Interceptor.Chain withWriteTimeout(int timeout, TimeUnit unit) {
+      return this;
+    }
+  }
+
+  /** A connection to {@code route} that is never opened. */
+  private static final class FakeConnection implements Connection {
+    private final Route route;
+    private final Socket socket = new Socket();
+
+    FakeConnection(Route route) {
+      this.route = route;
+    }
+
+    @Override
+    public Route route() {
+      return route;
+    }
+
+    @Override
+    public Socket socket() {
+      return socket;
+    }
+
+    @Override
+    public Handshake handshake() {
+      return null;
+    }
+
+    @Override
+    public Protocol protocol() {
+      return Protocol.HTTP_1_1;
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.Dns;
+
+/**
+ * A {@link Dns} that caches the lookups of the user-provided {@link Dns} in memory.
+ *
+ * <p>A lookup is served from the cache for {@code ttl} after it was resolved. Once three quarters
+ * of that have passed, the next lookup of the hostname also refreshes it in the background, so
+ * hostnames in steady use never make a call wait for a lookup. When an expired hostname can't be
+ * resolved, e.g. during a resolver outage, its expired addresses are served rather than failing
+ * the call, and kept for a short grace period. During that period lookups get them right away
+ * while the hostname is resolved again in the background, so an outage costs one failed lookup
+ * per hostname and grace period rather than one per call. Expired addresses are served for at most
+ * another {@code ttl} though: a resolver can't tell an outage from a hostname that doesn't exist
+ * anymore, and addresses that old are more likely to be wrong than worth a call.
+ *
+ * <p>At most {@code maxSize} hostnames are cached; beyond that the least recently used one is
+ * evicted. Lookups are rare next to calls, they only happen when a call needs a new connection, so
+ * the cache is a synchronized {@link LinkedHashMap} in access order.
+ */
+final class CachingDns implements Dns {
+  /** How long expired addresses are served once a hostname couldn't be resolved. */
+  static final long STALE_GRACE_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  private final Dns delegate;
+  private final long ttlNanos;
+  private final long refreshNanos;
+  private final Executor executor;
+  private final Clock clock;
+
+  private final Meter hits;
+  private final Meter misses;
+  private final Meter staleServed;
+  private final Meter refreshes;
+
+  private final Map<String, Entry> entries;
+
+  CachingDns(
+      @Nonnull Dns delegate,
+      long ttlNanos,
+      int maxSize,
+      @Nonnull Executor executor,
+      @Nonnull MetricFactory factory,
+      @Nullable String name) {
+    this(delegate, ttlNanos, maxSize, executor, factory, name, Clock.defaultClock());
+  }
+
+  CachingDns(
+      @Nonnull Dns delegate,
+      long ttlNanos,
+      int maxSize,
+      @Nonnull Executor executor,
+      @Nonnull MetricFactory factory,
+      @Nullable String name,
+      @Nonnull Clock clock) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+    }
+    this.delegate = delegate;
+    this.ttlNanos = ttlNanos;
+    this.refreshNanos = ttlNanos - ttlNanos / 4;
+    this.executor = executor;
+    this.clock = clock;
+    this.hits = factory.meter(MetricRegistry.name(name, "cache-hits"));
+    this.misses = factory.meter(MetricRegistry.name(name, "cache-misses"));
+    this.staleServed = factory.meter(MetricRegistry.name(name, "cache-stale-served"));
+    this.refreshes = factory.meter(MetricRegistry.name(name, "cache-refreshes"));
+    this.entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxSize;
+          }
+        };
+  }
+
+  @Nonnull
+  @Override
+  public List<InetAddress> lookup(@Nonnull String hostname) throws UnknownHostException {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(hostname);
+    }
+    if (entry != null) {
+      long now = clock.getTick();
+      if (now - entry.expiresTick < 0L) {
+        (entry.stale ? staleServed : hits).mark();
+        if (now - entry.refreshTick >= 0L && entry.refreshing.compareAndSet(false, true)) {
+          refresh(hostname, entry);
+        }
+        return entry.addresses;
+      }
+    }
+    misses.mark();
+    try {
+      return resolve(hostname);
+    } catch (UnknownHostException e) {
+      if (entry == null) {
+        throw e;
+      }
+      long now = clock.getTick();
+      // Served for at most another ttl after they expired.
+      long staleUntilTick = entry.resolvedTick + 2 * ttlNanos;
+      if (now - staleUntilTick >= 0L) {
+        synchronized (entries) {
+          entries.remove(hostname, entry);
+        }
+        throw e;
+      }
+      // Served right away for a while, and resolved in the background on the next lookup.
+      long expiresTick = now + Math.min(ttlNanos, STALE_GRACE_NANOS);
+      if (expiresTick - staleUntilTick > 0L) {
+        expiresTick = staleUntilTick;
+      }
+      Entry stale = new Entry(entry.addresses, entry.resolvedTick, now, expiresTick, true);
+      synchronized (entries) {
+        entries.put(hostname, stale);
+      }
+      staleServed.mark();
+      return entry.addresses;
+    }
+  }
+
+  private List<InetAddress> resolve(String hostname) throws UnknownHostException {
+    List<InetAddress> addresses = delegate.lookup(hostname);
+    long now = clock.getTick();
+    Entry entry = new Entry(addresses, now, now + refreshNanos, now + ttlNanos, false);
+    synchronized (entries) {
+      entries.put(hostname, entry);
+    }
+    return addresses;
+  }
+
+  /** Resolves {@code hostname} again in the background, replacing its {@code entry} on success. */
+  private void refresh(String hostname, Entry entry) {
+    refreshes.mark();
+    try {
+      executor.execute(
+          () -> {
+            try {
+              resolve(hostname);
+            } catch (UnknownHostException | RuntimeException e) {
+              // Keep serving the current entry; a later lookup retries.
+              entry.refreshing.set(false);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      entry.refreshing.set(false);
+    }
+  }
+
+  private static final class Entry {
+    final List<InetAddress> addresses;
+
+    /** The tick of the clock the addresses were resolved at. */
+    final long resolvedTick;
+
+    /** The tick of the clock from which a lookup also refreshes the addresses in the background. */
+    final long refreshTick;
+
+    /** The tick of the clock from which the addresses aren't served anymore. */
+    final long expiresTick;
+
+    /** Whether the addresses expired, and are only served because they couldn't be resolved. */
+    final boolean stale;
+
+    /** Whether a background refresh of this entry is in flight, or has replaced it. */
+    final AtomicBoolean refreshing = new AtomicBoolean();
+
+    Entry(
+        List<InetAddress> addresses,
+        long resolvedTick,
+        long refreshTick,
+        long expiresTick,
+        boolean stale) {
+      this.addresses = addresses;
+      this.resolvedTick = resolvedTick;
+      this.refreshTick = refreshTick;
+      this.expiresTick = expiresTick;
+      this.stale = stale;
+    }
+  }
+}
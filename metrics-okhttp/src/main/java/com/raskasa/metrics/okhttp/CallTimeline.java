@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import javax.annotation.Nullable;
+import okhttp3.Protocol;
+import okhttp3.TlsVersion;
+
+/**
+ * The events of a single call, as seen by the instrumented event listener, with the time each one
+ * happened at.
+ *
+ * <p>Times are ticks of a nanosecond clock with an arbitrary origin, as returned by {@link
+ * System#nanoTime()}: only differences between them are meaningful. An event that happens more
+ * than once during a call, such as connecting to each route that is tried, keeps the time of its
+ * last occurrence.
+ *
+ * <p>Timelines are reused from call to call. A timeline is only valid while it's being passed to
+ * {@link CallTimelineSink#accept}; a sink must copy whatever it needs rather than keep it.
+ */
+public final class CallTimeline {
+  /** The events of a call, after the {@link okhttp3.EventListener} callback they come from. */
+  public enum Event {
+    CALL_START,
+    PROXY_SELECT_START,
+    PROXY_SELECT_END,
+    DNS_START,
+    DNS_END,
+    CONNECT_START,
+    SECURE_CONNECT_START,
+    SECURE_CONNECT_END,
+    CONNECT_END,
+    CONNECT_FAILED,
+    CONNECTION_ACQUIRED,
+    REQUEST_HEADERS_START,
+    REQUEST_HEADERS_END,
+    REQUEST_BODY_START,
+    REQUEST_BODY_END,
+    REQUEST_FAILED,
+    RESPONSE_HEADERS_START,
+    RESPONSE_HEADERS_END,
+    RESPONSE_BODY_START,
+    RESPONSE_BODY_END,
+    RESPONSE_FAILED,
+    CONNECTION_RELEASED,
+    CACHE_HIT,
+    CACHE_CONDITIONAL_HIT,
+    CACHE_MISS,
+    SATISFACTION_FAILURE,
+    CALL_END,
+    CALL_FAILED
+  }
+
+  private final long[] ticks = new long[Event.values().length];
+
+  /** A bit per {@link Event#ordinal()}, set if the event happened. */
+  private long happened;
+
+  @Nullable private Protocol protocol;
+  @Nullable private TlsVersion tlsVersion;
+  private int code;
+  private boolean canceled;
+  private long requestBodyBytes;
+  private long responseBodyBytes;
+
+  CallTimeline() {}
+
+  void record(Event event, long tick) {
+    this.ticks[event.ordinal()] = tick;
+    this.happened |= 1L << event.ordinal();
+  }
+
+  void protocol(Protocol protocol) {
+    this.protocol = protocol;
+  }
+
+  void tlsVersion(TlsVersion tlsVersion) {
+    this.tlsVersion = tlsVersion;
+  }
+
+  void code(int code) {
+    this.code = code;
+  }
+
+  void canceled(boolean canceled) {
+    this.canceled = canceled;
+  }
+
+  void requestBodyBytes(long byteCount) {
+    this.requestBodyBytes += byteCount;
+  }
+
+  void responseBodyBytes(long byteCount) {
+    this.responseBodyBytes += byteCount;
+  }
+
+  /** Clears this timeline, so it can be reused for another call. */
+  void reset() {
+    this.happened = 0L;
+    this.protocol = null;
+    this.tlsVersion = null;
+    this.code = 0;
+    this.canceled = false;
+    this.requestBodyBytes = 0L;
+    this.responseBodyBytes = 0L;
+  }
+
+  /** Whether {@code event} happened during the call. */
+  public boolean happened(Event event) {
+    return (this.happened & (1L << event.ordinal())) != 0L;
+  }
+
+  /**
+   * The time {@code event} last happened at, in nanoseconds.
+   *
+   * @throws IllegalArgumentException if {@code event} didn't happen during the call.
+   */
+  public long tick(Event event) {
+    if (!happened(event)) {
+      throw new IllegalArgumentException(event + " didn't happen");
+    }
+    return this.ticks[event.ordinal()];
+  }
+
+  /**
+   * The time elapsed from {@code start} to {@code end}, in nanoseconds, or {@code -1} if either
+   * didn't happen during the call.
+   */
+  public long elapsedNanos(Event start, Event end) {
+    if (!happened(start) || !happened(end)) {
+      return -1L;
+    }
+    return this.ticks[end.ordinal()] - this.ticks[start.ordinal()];
+  }
+
+  /** Whether the call failed rather than completed. */
+  public boolean failed() {
+    return happened(Event.CALL_FAILED);
+  }
+
+  /** Whether the call was canceled. */
+  public boolean canceled() {
+    return this.canceled;
+  }
+
+  /** The protocol of the last connection the call acquired, or {@code null} if it acquired none. */
+  @Nullable
+  public Protocol protocol() {
+    return this.protocol;
+  }
+
+  /** The TLS version of the last handshake the call made, or {@code null} if it made none. */
+  @Nullable
+  public TlsVersion tlsVersion() {
+    return this.tlsVersion;
+  }
+
+  /** The status code of the call's last network response, or {@code 0} if it didn't get one. */
+  public int code() {
+    return this.code;
+  }
+
+  /** The number of request body bytes the call sent, over all its network requests. */
+  public long requestBodyBytes() {
+    return this.requestBodyBytes;
+  }
+
+  /** The number of response body bytes the call received, over all its network responses. */
+  public long responseBodyBytes() {
+    return this.responseBodyBytes;
+  }
+}
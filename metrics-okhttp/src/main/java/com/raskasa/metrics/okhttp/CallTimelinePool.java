@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of {@link CallTimeline timelines}, so that recording timelines doesn't allocate
+ * once enough of them are in circulation for the client's concurrency.
+ *
+ * <p>The pool is a fixed array of slots that are taken and filled with atomic operations. Callers
+ * start probing at a random slot to keep threads from contending on the same ones. When no slot
+ * holds a timeline a new one is created, and when no slot is free a released timeline is left to
+ * the garbage collector.
+ */
+final class CallTimelinePool {
+  private final AtomicReferenceArray<CallTimeline> slots;
+
+  CallTimelinePool(int size) {
+    this.slots = new AtomicReferenceArray<>(size);
+  }
+
+  CallTimeline acquire() {
+    int size = slots.length();
+    int start = ThreadLocalRandom.current().nextInt(size);
+    for (int i = 0; i < size; i++) {
+      int slot = (start + i) % size;
+      CallTimeline timeline = slots.get(slot);
+      if (timeline != null && slots.compareAndSet(slot, timeline, null)) {
+        return timeline;
+      }
+    }
+    return new CallTimeline();
+  }
+
+  void release(CallTimeline timeline) {
+    timeline.reset();
+    int size = slots.length();
+    int start = ThreadLocalRandom.current().nextInt(size);
+    for (int i = 0; i < size; i++) {
+      int slot = (start + i) % size;
+      if (slots.get(slot) == null && slots.compareAndSet(slot, null, timeline)) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import okhttp3.Call;
+
+/**
+ * Receives the {@link CallTimeline timeline} of every instrumented call when it ends or fails, e.g.
+ * to forward it to a tracing or logging pipeline.
+ *
+ * <p>Sinks are called on the thread that ends the call, so they should be quick and must not throw.
+ *
+ * @see InstrumentedOkHttpClients.Builder#callTimelineSink(CallTimelineSink)
+ */
+public interface CallTimelineSink {
+  /**
+   * Accepts the timeline of {@code call}. The timeline is reused for another call once this
+   * returns, so it must not be kept.
+   */
+  void accept(Call call, CallTimeline timeline);
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.HttpUrl;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * A client-scoped {@link EventListener} for calls that weren't sampled for the detailed metrics of
+ * {@link InstrumentedEventListener}. It only counts calls, and the connections they hold, so it
+ * keeps no per-call state: when the user didn't configure a listener a single instance serves every
+ * unsampled call.
+ *
+ * <p>Like {@link InstrumentedEventListener}, this listener ensures the user-provided listener
+ * receives ALL analytics events as expected.
+ */
+final class CountingEventListener extends EventListener {
+  private final EventListener delegate;
+  private final InstrumentedEventListener.Metrics metrics;
+
+  CountingEventListener(
+      @Nonnull InstrumentedEventListener.Metrics metrics, @Nonnull EventListener delegate) {
+    this.metrics = metrics;
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void callStart(@Nonnull Call call) {
+    this.metrics.callStart.mark();
+    this.delegate.callStart(call);
+  }
+
+  @Override
+  public void proxySelectStart(@Nonnull Call call, @Nonnull HttpUrl url) {
+    this.delegate.proxySelectStart(call, url);
+  }
+
+  @Override
+  public void proxySelectEnd(
+      @Nonnull Call call, @Nonnull HttpUrl url, @Nonnull List<Proxy> proxies) {
+    this.delegate.proxySelectEnd(call, url, proxies);
+  }
+
+  @Override
+  public void dnsStart(@Nonnull Call call, @Nonnull String domainName) {
+    this.delegate.dnsStart(call, domainName);
+  }
+
+  @Override
+  public void dnsEnd(
+      @Nonnull Call call, @Nonnull String domainName, @Nonnull List<InetAddress> inetAddressList) {
+    this.delegate.dnsEnd(call, domainName, inetAddressList);
+  }
+
+  @Override
+  public void connectStart(
+      @Nonnull Call call, @Nonnull InetSocketAddress inetSocketAddress, @Nonnull Proxy proxy) {
+    this.delegate.connectStart(call, inetSocketAddress, proxy);
+  }
+
+  @Override
+  public void secureConnectStart(@Nonnull Call call) {
+    this.delegate.secureConnectStart(call);
+  }
+
+  @Override
+  public void secureConnectEnd(@Nonnull Call call, @Nullable Handshake handshake) {
+    this.delegate.secureConnectEnd(call, handshake);
+  }
+
+  @Override
+  public void connectEnd(
+      @Nonnull Call call,
+      @Nonnull InetSocketAddress inetSocketAddress,
+      @Nonnull Proxy proxy,
+      @Nullable Protocol protocol) {
+    this.delegate.connectEnd(call, inetSocketAddress, proxy, protocol);
+  }
+
+  @Override
+  public void connectFailed(
+      @Nonnull Call call,
+      @Nonnull InetSocketAddress inetSocketAddress,
+      @Nonnull Proxy proxy,
+      @Nullable Protocol protocol,
+      @Nonnull IOException ioe) {
+    this.delegate.connectFailed(call, inetSocketAddress, proxy, protocol, ioe);
+  }
+
+  @Override
+  public void connectionAcquired(@Nonnull Call call, @Nonnull Connection connection) {
+    // Unlike the detailed metrics, gauges of what calls hold right now are only right if every
+    // call updates them.
+    this.metrics.connectionsHeld.inc();
+    this.metrics.multiplexedCallStarted(connection);
+    this.delegate.connectionAcquired(call, connection);
+  }
+
+  @Override
+  public void connectionReleased(@Nonnull Call call, @Nonnull Connection connection) {
+    this.metrics.connectionsHeld.dec();
+    // The protocol of a connection never changes, so this uncounts exactly what was counted.
+    if (InstrumentedEventListener.Metrics.isMultiplexed(connection.protocol())) {
+      this.metrics.multiplexedCallEnded(connection);
+    }
+    this.delegate.connectionReleased(call, connection);
+  }
+
+  @Override
+  public void requestHeadersStart(@Nonnull Call call) {
+    this.delegate.requestHeadersStart(call);
+  }
+
+  @Override
+  public void requestHeadersEnd(@Nonnull Call call, @Nonnull Request request) {
+    this.delegate.requestHeadersEnd(call, request);
+  }
+
+  @Override
+  public void requestBodyStart(@Nonnull Call call) {
+    this.delegate.requestBodyStart(call);
+  }
+
+  @Override
+  public void requestBodyEnd(@Nonnull Call call, long byteCount) {
+    this.delegate.requestBodyEnd(call, byteCount);
+  }
+
+  @Override
+  public void requestFailed(@Nonnull Call call, @Nonnull IOException ioe) {
+    this.delegate.requestFailed(call, ioe);
+  }
+
+  @Override
+  public void responseHeadersStart(@Nonnull Call call) {
+    this.delegate.responseHeadersStart(call);
+  }
+
+  @Override
+  public void responseHeadersEnd(@Nonnull Call call, @Nonnull Response response) {
+    this.delegate.responseHeadersEnd(call, response);
+  }
+
+  @Override
+  public void responseBodyStart(@Nonnull Call call) {
+    this.delegate.responseBodyStart(call);
+  }
+
+  @Override
+  public void responseBodyEnd(@Nonnull Call call, long byteCount) {
+    this.delegate.responseBodyEnd(call, byteCount);
+  }
+
+  @Override
+  public void responseFailed(@Nonnull Call call, @Nonnull IOException ioe) {
+    this.delegate.responseFailed(call, ioe);
+  }
+
+  @Override
+  public void callEnd(@Nonnull Call call) {
+    this.metrics.callEnd.mark();
+    this.delegate.callEnd(call);
+  }
+
+  @Override
+  public void callFailed(@Nonnull Call call, @Nonnull IOException ioe) {
+    this.metrics.callFailed.mark();
+    this.delegate.callFailed(call, ioe);
+  }
+
+  @Override
+  public void canceled(@Nonnull Call call) {
+    this.delegate.canceled(call);
+  }
+
+  @Override
+  public void satisfactionFailure(@Nonnull Call call, @Nonnull Response response) {
+    this.delegate.satisfactionFailure(call, response);
+  }
+
+  @Override
+  public void cacheHit(@Nonnull Call call, @Nonnull Response response) {
+    this.delegate.cacheHit(call, response);
+  }
+
+  @Override
+  public void cacheMiss(@Nonnull Call call) {
+    this.delegate.cacheMiss(call);
+  }
+
+  @Override
+  public void cacheConditionalHit(@Nonnull Call call, @Nonnull Response cachedResponse) {
+    this.delegate.cacheConditionalHit(call, cachedResponse);
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+
+/**
+ * A bounded cache of per-host metric bundles.
+ *
+ * <p>At most {@code maxHosts} hosts get their own bundle. Once the cache is full, the least
+ * recently used host is evicted, and its metrics removed from the registry, only if it has been
+ * idle for {@link #IDLE_TIMEOUT_NANOS}; otherwise the new host is recorded in the shared {@link
+ * #OVERFLOW_HOST} bundle. A workload that talks to an unbounded number of hosts therefore can't
+ * grow the registry, and can't churn the bundles of the hosts it talks to regularly either.
+ *
+ * <p>Looking up a host that already has a bundle takes no lock, so that the calls of a busy client
+ * don't serialize on the cache. Only adding a host, and evicting one to make room for it, is done
+ * under a lock.
+ *
+ * @param <T> the type of the per-host metric bundle.
+ */
+final class HostMetricsCache<T> {
+  /** The host under which hosts that don't fit in the cache are recorded. */
+  static final String OVERFLOW_HOST = "other";
+
+  /** How long a host must go unused before it can be evicted to make room for another. */
+  static final long IDLE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+  /**
+   * How stale the last use of a host may get before a lookup records a new one. Recording every
+   * lookup would make the cores that use the same host contend for its entry.
+   */
+  private static final long LAST_USED_RESOLUTION_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final MetricRegistry registry;
+  private final String prefix;
+  private final Function<String, T> factory;
+  private final int maxHosts;
+  private final Clock clock;
+  private final T overflow;
+  private final ConcurrentHashMap<String, Entry<T>> hosts = new ConcurrentHashMap<>();
+
+  /**
+   * @param prefix the name every per-host metric name starts with.
+   * @param factory creates the bundle for a host, given the metric name prefix for that host.
+   */
+  HostMetricsCache(
+      @Nonnull MetricRegistry registry,
+      @Nonnull String prefix,
+      int maxHosts,
+      @Nonnull Function<String, T> factory) {
+    this(registry, prefix, maxHosts, factory, Clock.defaultClock());
+  }
+
+  HostMetricsCache(
+      @Nonnull MetricRegistry registry,
+      @Nonnull String prefix,
+      int maxHosts,
+      @Nonnull Function<String, T> factory,
+      @Nonnull Clock clock) {
+    if (maxHosts <= 0) {
+      throw new IllegalArgumentException("maxHosts <= 0: " + maxHosts);
+    }
+    this.registry = registry;
+    this.prefix = prefix;
+    this.factory = factory;
+    this.maxHosts = maxHosts;
+    this.clock = clock;
+    this.overflow = factory.apply(MetricRegistry.name(prefix, OVERFLOW_HOST));
+  }
+
+  /** Returns the bundle for {@code host}, or the overflow bundle if there is no room for it. */
+  @Nonnull
+  T get(@Nonnull String host) {
+    long now = clock.getTick();
+    Entry<T> entry = hosts.get(host);
+    if (entry != null) {
+      if (now - entry.lastUsedTick >= LAST_USED_RESOLUTION_NANOS) {
+        entry.lastUsedTick = now;
+      }
+      return entry.metrics;
+    }
+    return add(host, now);
+  }
+
+  /** Adds a bundle for {@code host}, unless there is no room for it. */
+  private T add(String host, long now) {
+    synchronized (hosts) {
+      Entry<T> entry = hosts.get(host);
+      if (entry != null) {
+        return entry.metrics;
+      }
+      if (hosts.size() >= maxHosts && !evictIdleHost(now)) {
+        return overflow;
+      }
+      entry = new Entry<>(factory.apply(MetricRegistry.name(prefix, host)), now);
+      hosts.put(host, entry);
+      return entry.metrics;
+    }
+  }
+
+  /**
+   * Evicts the least recently used host if it has been idle long enough. Scanning every host is
+   * fine here: the cache is small, and this only runs when a new host doesn't fit.
+   */
+  private boolean evictIdleHost(long now) {
+    String eldest = null;
+    long eldestTick = now;
+    for (Map.Entry<String, Entry<T>> candidate : hosts.entrySet()) {
+      long lastUsedTick = candidate.getValue().lastUsedTick;
+      if (eldest == null || lastUsedTick - eldestTick < 0) {
+        eldest = candidate.getKey();
+        eldestTick = lastUsedTick;
+      }
+    }
+    if (eldest == null || now - eldestTick < IDLE_TIMEOUT_NANOS) {
+      return false;
+    }
+    hosts.remove(eldest);
+    // Metric names below a host are "<prefix>.<host>.<metric>", where <metric> has no dots.
+    // Matching on that, rather than on the prefix alone, leaves hosts like "<host>.example" alone.
+    String hostPrefix = MetricRegistry.name(prefix, eldest) + '.';
+    registry.removeMatching(
+        (name, metric) ->
+            name.startsWith(hostPrefix) && name.indexOf('.', hostPrefix.length()) == -1);
+    return true;
+  }
+
+  private static final class Entry<T> {
+    final T metrics;
+    volatile long lastUsedTick;
+
+    Entry(T metrics, long lastUsedTick) {
+      this.metrics = metrics;
+      this.lastUsedTick = lastUsedTick;
+    }
+  }
+}
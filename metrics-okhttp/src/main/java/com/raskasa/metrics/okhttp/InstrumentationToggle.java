@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+/**
+ * Turns the per-call instrumentation of one or more clients on and off at runtime, without
+ * rebuilding them. Useful to shed the cost of instrumentation during an incident.
+ *
+ * <p>While disabled, calls bypass the instrumented event listener and network interceptor
+ * entirely. Gauges, such as the connection pool and cache ones, are only evaluated when a reporter
+ * polls them and keep reporting.
+ *
+ * <p>The event listener checks the toggle once per call, when the call is created, whereas the
+ * network interceptor checks it on every network request. A call in flight while the toggle flips
+ * therefore keeps or lacks its event listener metrics, but its later network requests, such as
+ * redirects and retries, follow the toggle.
+ *
+ * @see InstrumentedOkHttpClients.Builder#toggle(InstrumentationToggle)
+ */
+public final class InstrumentationToggle {
+  private volatile boolean enabled = true;
+
+  /**
+   * Resume instrumenting calls. Calls already in flight don't record event listener metrics, but
+   * their next network requests are recorded.
+   */
+  public void enable() {
+    enabled = true;
+  }
+
+  /**
+   * Stop instrumenting calls. Calls already in flight still record event listener metrics, but
+   * their next network requests aren't recorded.
+   */
+  public void disable() {
+    enabled = false;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.Dns;
+
+/**
+ * A {@link Dns} that records the latency and failures of the lookups of the user-provided {@link
+ * Dns}, overall and optionally per hostname.
+ *
+ * <p>Unlike the event listener's {@code dns-duration}, which times whatever the call waited for,
+ * this only times actual lookups, including those that refresh a {@link CachingDns cache} in the
+ * background.
+ */
+final class InstrumentedDns implements Dns {
+  private final Dns delegate;
+  private final Clock clock;
+  private final Timer duration;
+  private final Meter failed;
+
+  /** The per-hostname lookup metrics, or {@code null} if they aren't recorded. */
+  @Nullable private final HostMetricsCache<HostMetrics> hosts;
+
+  /**
+   * @param maxHosts the number of hostnames to record per-hostname lookup metrics for, or {@code 0}
+   *     to not record per-hostname metrics at all.
+   */
+  InstrumentedDns(
+      @Nonnull Dns delegate, @Nonnull MetricFactory factory, @Nullable String name, int maxHosts) {
+    this.delegate = delegate;
+    this.clock = Clock.defaultClock();
+    this.duration = factory.timer(MetricRegistry.name(name, "lookups-duration"));
+    this.failed = factory.meter(MetricRegistry.name(name, "lookups-failed"));
+    this.hosts =
+        maxHosts > 0
+            ? new HostMetricsCache<>(
+                factory.registry,
+                MetricRegistry.name(name, "hosts"),
+                maxHosts,
+                prefix -> new HostMetrics(factory, prefix))
+            : null;
+  }
+
+  @Nonnull
+  @Override
+  public List<InetAddress> lookup(@Nonnull String hostname) throws UnknownHostException {
+    HostMetrics host = hosts != null ? hosts.get(hostname) : null;
+    long start = clock.getTick();
+    boolean succeeded = false;
+    try {
+      List<InetAddress> addresses = delegate.lookup(hostname);
+      succeeded = true;
+      return addresses;
+    } finally {
+      long elapsed = clock.getTick() - start;
+      duration.update(elapsed, TimeUnit.NANOSECONDS);
+      if (!succeeded) {
+        failed.mark();
+      }
+      if (host != null) {
+        host.duration.update(elapsed, TimeUnit.NANOSECONDS);
+        if (!succeeded) {
+          host.failed.mark();
+        }
+      }
+    }
+  }
+
+  /** The lookup metrics recorded for a single hostname. */
+  private static final class HostMetrics {
+    final Timer duration;
+    final Meter failed;
+
+    HostMetrics(MetricFactory factory, String name) {
+      this.duration = factory.timer(MetricRegistry.name(name, "lookups-duration"));
+      this.failed = factory.meter(MetricRegistry.name(name, "lookups-failed"));
+    }
+  }
+}
@@ -15,23 +15,43 @@
  */
 package com.raskasa.metrics.okhttp;
 
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
 import com.codahale.metrics.Timer;
 import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.net.Socket;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import okhttp3.Call;
+import okhttp3.CipherSuite;
 import okhttp3.Connection;
 import okhttp3.EventListener;
 import okhttp3.Handshake;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
 import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.TlsVersion;
 
 /**
  * A client-scoped {@link EventListener} that records metrics around quantity, size, and duration of
@@ -49,26 +69,388 @@ import okhttp3.Response;
  */
 final class InstrumentedEventListener extends EventListener {
   static final class Factory implements EventListener.Factory {
-    private final MetricRegistry registry;
+    private final Metrics metrics;
     private final EventListener.Factory delegate;
-    private final String name;
+    private final int sampleRate;
+    private final InstrumentationToggle toggle;
+
+    /** The listener for unsampled calls, when there is no user-provided listener. */
+    private final EventListener unsampled;
 
+    /**
+     * @param maxHosts the number of hosts to record per-host call metrics for, or {@code 0} to not
+     *     record per-host metrics at all.
+     * @param sampleRate record detailed metrics for 1 in {@code sampleRate} calls; the others are
+     *     only counted.
+     * @param toggle calls created while this is disabled aren't instrumented at all.
+     * @param slowCalls where to record the phase breakdown of slow calls, or {@code null} to not
+     *     record it.
+     * @param timelineSink where to hand the timeline of each call to, or {@code null} to not record
+     *     timelines.
+     */
     Factory(
-        @Nonnull MetricRegistry registry,
+        @Nonnull MetricFactory factory,
         @Nonnull EventListener.Factory delegate,
-        @Nullable String name) {
-      this.registry = registry;
+        @Nullable String name,
+        int maxHosts,
+        int sampleRate,
+        @Nonnull InstrumentationToggle toggle,
+        @Nullable SlowCallLog slowCalls,
+        @Nullable CallTimelineSink timelineSink) {
+      this.metrics = new Metrics(factory, name, maxHosts, slowCalls, timelineSink);
       this.delegate = delegate;
-      this.name = name;
+      this.sampleRate = sampleRate;
+      this.toggle = toggle;
+      this.unsampled = new CountingEventListener(this.metrics, EventListener.NONE);
     }
 
     @Nonnull
     @Override
     public EventListener create(@Nonnull Call call) {
-      return new InstrumentedEventListener(this.registry, this.delegate.create(call), this.name);
+      EventListener delegate = this.delegate.create(call);
+      if (!this.toggle.isEnabled()) {
+        return delegate;
+      }
+      if (this.sampleRate > 1 && ThreadLocalRandom.current().nextInt(this.sampleRate) != 0) {
+        return delegate == EventListener.NONE
+            ? this.unsampled
+            : new CountingEventListener(this.metrics, delegate);
+      }
+      return new InstrumentedEventListener(this.metrics, delegate);
+    }
+
+    /**
+     * Returns the application interceptor that marks when calls start executing. It must run
+     * before any other interceptor, so that the time those take isn't mistaken for time spent
+     * waiting in the dispatcher's queue.
+     */
+    @Nonnull
+    Interceptor executionInterceptor() {
+      return chain -> {
+        InstrumentedEventListener listener = this.metrics.awaitingExecution.remove(chain.call());
+        if (listener != null) {
+          listener.executing();
+        }
+        return chain.proceed(chain.request());
+      };
     }
   }
 
+  /**
+   * The metrics recorded for a single instrumented client.
+   *
+   * <p>Metric names never change for the lifetime of a client, so they are resolved against the
+   * registry once, when the {@link Factory} is created, and shared by every listener it creates.
+   */
+  static final class Metrics {
+    private final MetricFactory factory;
+    private final String name;
+
+    final Clock clock;
+
+    final Meter callStart;
+    final Meter callEnd;
+    final Meter callFailed;
+    final Timer callDuration;
+    final Timer dispatcherQueueDuration;
+
+    final Meter dnsStart;
+    final Meter dnsEnd;
+    final Timer dnsDuration;
+
+    final Meter connectionStart;
+    final Meter connectionEnd;
+    final Meter connectionFailed;
+    final Timer connectionDuration;
+    final Timer connectionDurationIpv4;
+    final Timer connectionDurationIpv6;
+    final Histogram connectionAttempts;
+    final Meter connectionAcquired;
+    final Meter connectionReleased;
+    final Meter connectionAcquiredNew;
+    final Meter connectionAcquiredPooled;
+    final Timer connectionHoldDuration;
+    final Counter connectionsHeld;
+
+    /** New connections by negotiated protocol, indexed by {@link Protocol#ordinal()}. */
+    final Counter[] connectionProtocols;
+
+    /** Calls by the protocol of the connection they acquired, indexed like the above. */
+    final Counter[] callProtocols;
+
+    /** The listeners of the calls that started but haven't started executing yet. */
+    final ConcurrentMap<Call, InstrumentedEventListener> awaitingExecution =
+        new ConcurrentHashMap<>();
+
+    /** The number of calls currently sharing each multiplexed (HTTP/2) connection. */
+    final ConcurrentMap<Connection, Integer> multiplexedCalls = new ConcurrentHashMap<>();
+
+    final Timer tlsHandshakeDuration;
+    final Meter tlsHandshakeFull;
+    final Meter tlsHandshakeResumed;
+    private final ConcurrentMap<TlsVersion, Counter> tlsVersions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CipherSuite, Counter> tlsCipherSuites = new ConcurrentHashMap<>();
+
+    final Timer requestWriteDuration;
+    final Timer timeToFirstByte;
+    final Timer responseHeadersReadDuration;
+
+    final Meter cacheHit;
+    final Meter cacheConditionalHit;
+    final Meter cacheMiss;
+    final Meter cacheSatisfactionFailure;
+
+    /** Call durations indexed by the {@code CACHE_*} outcome; no timer for a call without one. */
+    final Timer[] callDurationByCacheOutcome;
+
+    final Histogram networkRoundTrips;
+    final Meter followUpRedirect;
+    final Meter followUpAuth;
+    final Meter followUpRetry;
+
+    final Timer requestBodyDuration;
+    final Histogram requestBodySize;
+    final Meter requestBodyBytes;
+    final Histogram responseBodySize;
+    final Meter responseBodyBytes;
+
+    /** The per-host call metrics, or {@code null} if they aren't recorded. */
+    @Nullable final HostMetricsCache<HostMetrics> hosts;
+
+    /** Enough timelines for as many concurrent calls as a dispatcher runs by default. */
+    private static final int TIMELINE_POOL_SIZE = 64;
+
+    @Nullable final SlowCallLog slowCalls;
+
+    @Nullable final CallTimelineSink timelineSink;
+
+    /** Recycles the timelines handed to {@link #timelineSink}, if there is one. */
+    @Nullable final CallTimelinePool timelines;
+
+    Metrics(
+        @Nonnull MetricFactory factory,
+        @Nullable String name,
+        int maxHosts,
+        @Nullable SlowCallLog slowCalls,
+        @Nullable CallTimelineSink timelineSink) {
+      this.factory = factory;
+      this.name = name;
+      this.clock = Clock.defaultClock();
+
+      this.callStart = factory.meter(MetricRegistry.name(name, "calls-start"));
+      this.callEnd = factory.meter(MetricRegistry.name(name, "calls-end"));
+      this.callFailed = factory.meter(MetricRegistry.name(name, "calls-failed"));
+      this.callDuration = factory.timer(MetricRegistry.name(name, "calls-duration"));
+      this.dispatcherQueueDuration =
+          factory.timer(MetricRegistry.name(name, "dispatcher-queue-duration"));
+
+      this.dnsStart = factory.meter(MetricRegistry.name(name, "dns-start"));
+      this.dnsEnd = factory.meter(MetricRegistry.name(name, "dns-end"));
+      this.dnsDuration = factory.timer(MetricRegistry.name(name, "dns-duration"));
+
+      this.connectionStart = factory.meter(MetricRegistry.name(name, "connections-start"));
+      this.connectionEnd = factory.meter(MetricRegistry.name(name, "connections-end"));
+      this.connectionFailed = factory.meter(MetricRegistry.name(name, "connections-failed"));
+      this.connectionDuration = factory.timer(MetricRegistry.name(name, "connections-duration"));
+      this.connectionDurationIpv4 =
+          factory.timer(MetricRegistry.name(name, "connections-duration-ipv4"));
+      this.connectionDurationIpv6 =
+          factory.timer(MetricRegistry.name(name, "connections-duration-ipv6"));
+      this.connectionAttempts =
+          factory.histogram(MetricRegistry.name(name, "calls-connect-attempts"));
+      this.connectionAcquired = factory.meter(MetricRegistry.name(name, "connections-acquired"));
+      this.connectionReleased = factory.meter(MetricRegistry.name(name, "connections-released"));
+      this.connectionAcquiredNew =
+          factory.meter(MetricRegistry.name(name, "connections-acquired-new"));
+      this.connectionAcquiredPooled =
+          factory.meter(MetricRegistry.name(name, "connections-acquired-pooled"));
+      this.connectionHoldDuration =
+          factory.timer(MetricRegistry.name(name, "connections-hold-duration"));
+      this.connectionsHeld = factory.counter(MetricRegistry.name(name, "connections-held"));
+      Protocol[] protocols = Protocol.values();
+      this.connectionProtocols = new Counter[protocols.length];
+      this.callProtocols = new Counter[protocols.length];
+      for (Protocol protocol : protocols) {
+        this.connectionProtocols[protocol.ordinal()] =
+            factory.counter(
+                MetricRegistry.name(name, "connections-protocols", protocol.toString()));
+        this.callProtocols[protocol.ordinal()] =
+            factory.counter(MetricRegistry.name(name, "calls-protocols", protocol.toString()));
+      }
+      factory.registry.register(
+          MetricRegistry.name(name, "connections-multiplexed-calls"),
+          new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+              // The mean number of calls in flight on each HTTP/2 connection that has any.
+              int connections = 0;
+              int calls = 0;
+              for (int count : multiplexedCalls.values()) {
+                connections++;
+                calls += count;
+              }
+              return connections == 0 ? 0.0 : (double) calls / connections;
+            }
+          });
+      factory.registry.register(
+          MetricRegistry.name(name, "connections-reuse-ratio"),
+          new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+              // The share of recently acquired connections that came from the pool.
+              double pooled = connectionAcquiredPooled.getOneMinuteRate();
+              return Ratio.of(pooled, pooled + connectionAcquiredNew.getOneMinuteRate());
+            }
+          });
+
+      this.tlsHandshakeDuration =
+          factory.timer(MetricRegistry.name(name, "tls-handshakes-duration"));
+      this.tlsHandshakeFull = factory.meter(MetricRegistry.name(name, "tls-handshakes-full"));
+      this.tlsHandshakeResumed = factory.meter(MetricRegistry.name(name, "tls-handshakes-resumed"));
+
+      this.requestWriteDuration =
+          factory.timer(MetricRegistry.name(name, "request-write-duration"));
+      this.timeToFirstByte =
+          factory.timer(MetricRegistry.name(name, "time-to-first-byte-duration"));
+      this.responseHeadersReadDuration =
+          factory.timer(MetricRegistry.name(name, "response-headers-read-duration"));
+
+      this.cacheHit = factory.meter(MetricRegistry.name(name, "cache-hits"));
+      this.cacheConditionalHit = factory.meter(MetricRegistry.name(name, "cache-conditional-hits"));
+      this.cacheMiss = factory.meter(MetricRegistry.name(name, "cache-misses"));
+      this.cacheSatisfactionFailure =
+          factory.meter(MetricRegistry.name(name, "cache-satisfaction-failures"));
+      this.callDurationByCacheOutcome = new Timer[CACHE_OUTCOMES];
+      this.callDurationByCacheOutcome[CACHE_HIT] =
+          factory.timer(MetricRegistry.name(name, "calls-duration-cache-hit"));
+      this.callDurationByCacheOutcome[CACHE_CONDITIONAL_HIT] =
+          factory.timer(MetricRegistry.name(name, "calls-duration-cache-conditional-hit"));
+      this.callDurationByCacheOutcome[CACHE_MISS] =
+          factory.timer(MetricRegistry.name(name, "calls-duration-cache-miss"));
+      this.callDurationByCacheOutcome[CACHE_CONDITIONAL_MISS] =
+          factory.timer(MetricRegistry.name(name, "calls-duration-cache-conditional-miss"));
+
+      this.networkRoundTrips =
+          factory.histogram(MetricRegistry.name(name, "calls-network-round-trips"));
+      this.followUpRedirect = factory.meter(MetricRegistry.name(name, "follow-ups-redirect"));
+      this.followUpAuth = factory.meter(MetricRegistry.name(name, "follow-ups-auth"));
+      this.followUpRetry = factory.meter(MetricRegistry.name(name, "follow-ups-retry"));
+
+      this.requestBodyDuration = factory.timer(MetricRegistry.name(name, "request-body-duration"));
+      this.requestBodySize = factory.histogram(MetricRegistry.name(name, "request-body-size"));
+      this.requestBodyBytes = factory.meter(MetricRegistry.name(name, "request-body-bytes"));
+      this.responseBodySize = factory.histogram(MetricRegistry.name(name, "response-body-size"));
+      this.responseBodyBytes = factory.meter(MetricRegistry.name(name, "response-body-bytes"));
+
+      this.hosts =
+          maxHosts > 0
+              ? new HostMetricsCache<>(
+                  factory.registry,
+                  MetricRegistry.name(name, "hosts"),
+                  maxHosts,
+                  prefix -> new HostMetrics(factory, prefix))
+              : null;
+
+      this.timelineSink = timelineSink;
+      this.timelines = timelineSink != null ? new CallTimelinePool(TIMELINE_POOL_SIZE) : null;
+      this.slowCalls = slowCalls;
+      if (slowCalls != null) {
+        factory.registry.register(
+            MetricRegistry.name(name, "slow-calls-captured"),
+            new Gauge<Long>() {
+              @Override
+              public Long getValue() {
+                return slowCalls.capturedCount();
+              }
+            });
+      }
+    }
+
+    /**
+     * Counts a call on {@code connection} in {@link #multiplexedCalls}, if the connection is
+     * multiplexed.
+     *
+     * @return whether the call was counted.
+     */
+    boolean multiplexedCallStarted(@Nonnull Connection connection) {
+      if (!isMultiplexed(connection.protocol())) {
+        return false;
+      }
+      this.multiplexedCalls.merge(connection, 1, Integer::sum);
+      return true;
+    }
+
+    /** Uncounts a call that {@link #multiplexedCallStarted} counted on {@code connection}. */
+    void multiplexedCallEnded(@Nonnull Connection connection) {
+      // Drops the connection's entry once its last call releases it.
+      this.multiplexedCalls.computeIfPresent(
+          connection, (c, calls) -> calls > 1 ? calls - 1 : null);
+    }
+
+    /** Whether connections speaking {@code protocol} carry several calls at once. */
+    static boolean isMultiplexed(@Nonnull Protocol protocol) {
+      return protocol == Protocol.HTTP_2 || protocol == Protocol.H2_PRIOR_KNOWLEDGE;
+    }
+
+    /**
+     * The number of handshakes that negotiated {@code tlsVersion}, named after the version's
+     * constant, e.g. {@code TLS_1_3}. The dots of its Java name, {@code TLSv1.3}, would split the
+     * metric name in hierarchical reporters such as Graphite.
+     */
+    Counter tlsVersion(@Nonnull TlsVersion tlsVersion) {
+      Counter counter = this.tlsVersions.get(tlsVersion);
+      if (counter == null) {
+        counter =
+            this.tlsVersions.computeIfAbsent(
+                tlsVersion,
+                version ->
+                    this.factory.counter(
+                        MetricRegistry.name(this.name, "tls-versions", version.name())));
+      }
+      return counter;
+    }
+
+    /** The number of handshakes that negotiated {@code cipherSuite}. */
+    Counter tlsCipherSuite(@Nonnull CipherSuite cipherSuite) {
+      Counter counter = this.tlsCipherSuites.get(cipherSuite);
+      if (counter == null) {
+        counter =
+            this.tlsCipherSuites.computeIfAbsent(
+                cipherSuite,
+                suite ->
+                    this.factory.counter(
+                        MetricRegistry.name(this.name, "tls-cipher-suites", suite.javaName())));
+      }
+      return counter;
+    }
+  }
+
+  /** The call metrics recorded for a single host of an instrumented client. */
+  static final class HostMetrics {
+    final Meter callStart;
+    final Meter callEnd;
+    final Meter callFailed;
+    final Timer callDuration;
+
+    HostMetrics(@Nonnull MetricFactory factory, @Nonnull String name) {
+      this.callStart = factory.meter(MetricRegistry.name(name, "calls-start"));
+      this.callEnd = factory.meter(MetricRegistry.name(name, "calls-end"));
+      this.callFailed = factory.meter(MetricRegistry.name(name, "calls-failed"));
+      this.callDuration = factory.timer(MetricRegistry.name(name, "calls-duration"));
+    }
+  }
+
+  /** How the cache handled a call, if the client has a cache. */
+  private static final int CACHE_NONE = 0;
+
+  private static final int CACHE_HIT = 1;
+  /** The cached response was validated with the server, which answered it's still current. */
+  private static final int CACHE_CONDITIONAL_HIT = 2;
+  private static final int CACHE_MISS = 3;
+  /** The cached response was validated with the server, which answered with a new response. */
+  private static final int CACHE_CONDITIONAL_MISS = 4;
+  private static final int CACHE_OUTCOMES = 5;
+
   /**
    * The user-provided {@link EventListener listener}.
    *
@@ -77,83 +459,204 @@ final class InstrumentedEventListener extends EventListener {
    */
   private final EventListener delegate;
 
-  private final Meter callStart;
-  private final Meter callEnd;
-  private final Meter callFailed;
-  private final Timer callDuration;
-  private Timer.Context callDurationContext;
-
-  private final Meter dnsStart;
-  private final Meter dnsEnd;
-  private final Timer dnsDuration;
-  private Timer.Context dnsDurationContext;
-
-  private final Meter connectionStart;
-  private final Meter connectionEnd;
-  private final Meter connectionFailed;
-  private final Timer connectionDuration;
-  private Timer.Context connectionDurationContext;
-  private final Meter connectionAcquired;
-  private final Meter connectionReleased;
-
-  InstrumentedEventListener(
-      @Nonnull MetricRegistry registry, @Nonnull EventListener delegate, @Nullable String name) {
-    this.delegate = delegate;
+  private final Metrics metrics;
+
+  /** The metrics for the host of this call, or {@code null} if they aren't recorded. */
+  @Nullable private HostMetrics hostMetrics;
+
+  /*
+   * Phase start times, as ticks of the metrics' clock. Phases are timed with primitive fields and
+   * Timer#update rather than Timer.Context so that timing a call allocates nothing.
+   */
+  private long callStartTick;
+  private long dnsStartTick;
+  private long connectionAcquiredTick;
+  private long requestStartTick;
+  private long requestEndTick;
+  private long requestBodyStartTick;
+  private long responseHeadersStartTick;
+  private long responseBodyStartTick;
+
+  /*
+   * Time spent in each phase so far, in nanoseconds, for the slow call log. Phases that happen more
+   * than once per call, such as connecting to several routes, add up.
+   */
+  private long dnsNanos;
+  private long connectNanos;
+  private long tlsNanos;
+  private long requestWriteNanos;
+  private long timeToFirstByteNanos;
+  private long responseBodyNanos;
+
+  /**
+   * The thread that started this call, until the call starts executing.
+   *
+   * <p>Asynchronous calls start on the thread that enqueues them and execute on one of the {@link
+   * okhttp3.Dispatcher dispatcher's} threads, so a call that starts executing on a different thread
+   * has spent the time in between waiting in the dispatcher's queue.
+   */
+  @Nullable private Thread callStartThread;
+
+  /** One of the {@code CACHE_*} constants. */
+  private int cacheOutcome = CACHE_NONE;
+
+  /**
+   * The number of requests this call sent over the network: one, plus one per redirect,
+   * authentication challenge and retry. Zero if the call was served from the cache.
+   */
+  private int networkRoundTrips;
+
+  /** The status code of this call's last network response, or {@code 0} if it didn't get one. */
+  private int lastResponseCode;
+
+  /** The events of this call, if a {@link CallTimelineSink} is configured. */
+  @Nullable private CallTimeline timeline;
+
+  /** Whether this call was canceled. */
+  private volatile boolean canceled;
+
+  /** Whether this call holds a connection it acquired, and hasn't released yet. */
+  private boolean holdingConnection;
 
-    this.callStart = registry.meter(MetricRegistry.name(name, "calls-start"));
-    this.callEnd = registry.meter(MetricRegistry.name(name, "calls-end"));
-    this.callFailed = registry.meter(MetricRegistry.name(name, "calls-failed"));
-    this.callDuration = registry.timer(MetricRegistry.name(name, "calls-duration"));
+  /** Whether the connection this call holds is counted in {@link Metrics#multiplexedCalls}. */
+  private boolean multiplexing;
 
-    this.dnsStart = registry.meter(MetricRegistry.name(name, "dns-start"));
-    this.dnsEnd = registry.meter(MetricRegistry.name(name, "dns-end"));
-    this.dnsDuration = registry.timer(MetricRegistry.name(name, "dns-duration"));
+  /** Whether this call started connecting since it last acquired a connection. */
+  private boolean connecting;
 
-    this.connectionStart = registry.meter(MetricRegistry.name(name, "connections-start"));
-    this.connectionEnd = registry.meter(MetricRegistry.name(name, "connections-end"));
-    this.connectionFailed = registry.meter(MetricRegistry.name(name, "connections-failed"));
-    this.connectionDuration = registry.timer(MetricRegistry.name(name, "connections-duration"));
-    this.connectionAcquired = registry.meter(MetricRegistry.name(name, "connections-acquired"));
-    this.connectionReleased = registry.meter(MetricRegistry.name(name, "connections-released"));
+  /*
+   * Connect attempts. OkHttp may race attempts to several addresses of a route on different
+   * threads, each connecting and then running its TLS handshake on its own thread. So attempts are
+   * tracked per address, handshakes per thread, and these fields, as well as connectNanos and
+   * tlsNanos above, are guarded by this listener. Unlike the phases above this allocates, but only
+   * for calls that connect.
+   */
+
+  /** The start ticks of the connect attempts in flight, by address; created on the first one. */
+  @Nullable private Map<InetSocketAddress, Long> connectStartTicks;
+
+  /** The start ticks of the TLS handshakes in flight, by thread; created on the first one. */
+  @Nullable private Map<Thread, Long> secureConnectStartTicks;
+
+  /** The number of connect attempts this call made. */
+  private int connectAttempts;
+
+  /**
+   * The wall time the earliest TLS handshake of this call started at, or {@code 0} once the
+   * handshake has been classified as full or resumed.
+   */
+  private long secureConnectStartMillis;
+
+  InstrumentedEventListener(@Nonnull Metrics metrics, @Nonnull EventListener delegate) {
+    this.metrics = metrics;
+    this.delegate = delegate;
   }
 
   @Override
   public void callStart(@Nonnull Call call) {
-    this.callStart.mark();
-    this.callDurationContext = this.callDuration.time();
+    this.metrics.callStart.mark();
+    if (this.metrics.hosts != null) {
+      this.hostMetrics = this.metrics.hosts.get(call.request().url().host());
+      this.hostMetrics.callStart.mark();
+    }
+    this.callStartTick = this.metrics.clock.getTick();
+    this.callStartThread = Thread.currentThread();
+    this.metrics.awaitingExecution.put(call, this);
+    if (this.metrics.timelines != null) {
+      this.timeline = this.metrics.timelines.acquire();
+      this.timeline.record(CallTimeline.Event.CALL_START, this.callStartTick);
+    }
     this.delegate.callStart(call);
   }
 
+  @Override
+  public void proxySelectStart(@Nonnull Call call, @Nonnull HttpUrl url) {
+    record(CallTimeline.Event.PROXY_SELECT_START);
+    this.delegate.proxySelectStart(call, url);
+  }
+
+  @Override
+  public void proxySelectEnd(
+      @Nonnull Call call, @Nonnull HttpUrl url, @Nonnull List<Proxy> proxies) {
+    record(CallTimeline.Event.PROXY_SELECT_END);
+    this.delegate.proxySelectEnd(call, url, proxies);
+  }
+
   @Override
   public void dnsStart(@Nonnull Call call, @Nonnull String domainName) {
-    this.dnsStart.mark();
-    this.dnsDurationContext = this.dnsDuration.time();
+    record(CallTimeline.Event.DNS_START);
+    this.metrics.dnsStart.mark();
+    this.dnsStartTick = this.metrics.clock.getTick();
     this.delegate.dnsStart(call, domainName);
   }
 
   @Override
   public void dnsEnd(
       @Nonnull Call call, @Nonnull String domainName, @Nonnull List<InetAddress> inetAddressList) {
-    this.dnsDurationContext.stop();
-    this.dnsEnd.mark();
+    record(CallTimeline.Event.DNS_END);
+    this.dnsNanos += stop(this.metrics.dnsDuration, this.dnsStartTick);
+    this.metrics.dnsEnd.mark();
     this.delegate.dnsEnd(call, domainName, inetAddressList);
   }
 
   @Override
   public void connectStart(
       @Nonnull Call call, @Nonnull InetSocketAddress inetSocketAddress, @Nonnull Proxy proxy) {
-    this.connectionStart.mark();
-    this.connectionDurationContext = this.connectionDuration.time();
+    this.metrics.connectionStart.mark();
+    long tick = this.metrics.clock.getTick();
+    synchronized (this) {
+      record(CallTimeline.Event.CONNECT_START);
+      if (this.connectStartTicks == null) {
+        this.connectStartTicks = new HashMap<>();
+      }
+      this.connectStartTicks.put(inetSocketAddress, tick);
+      this.connectAttempts++;
+      this.connecting = true;
+    }
     this.delegate.connectStart(call, inetSocketAddress, proxy);
   }
 
   @Override
   public void secureConnectStart(@Nonnull Call call) {
+    long tick = this.metrics.clock.getTick();
+    long millis = System.currentTimeMillis();
+    synchronized (this) {
+      record(CallTimeline.Event.SECURE_CONNECT_START);
+      if (this.secureConnectStartTicks == null) {
+        this.secureConnectStartTicks = new HashMap<>();
+      }
+      this.secureConnectStartTicks.put(Thread.currentThread(), tick);
+      if (this.secureConnectStartMillis == 0L) {
+        this.secureConnectStartMillis = millis;
+      }
+    }
     this.delegate.secureConnectStart(call);
   }
 
   @Override
   public void secureConnectEnd(@Nonnull Call call, @Nullable Handshake handshake) {
+    long tick = this.metrics.clock.getTick();
+    Long startTick;
+    synchronized (this) {
+      record(CallTimeline.Event.SECURE_CONNECT_END);
+      startTick =
+          this.secureConnectStartTicks != null
+              ? this.secureConnectStartTicks.remove(Thread.currentThread())
+              : null;
+      if (startTick != null) {
+        this.tlsNanos += tick - startTick;
+      }
+      if (handshake != null && this.timeline != null) {
+        this.timeline.tlsVersion(handshake.tlsVersion());
+      }
+    }
+    if (startTick != null) {
+      this.metrics.tlsHandshakeDuration.update(tick - startTick, TimeUnit.NANOSECONDS);
+    }
+    if (handshake != null) {
+      this.metrics.tlsVersion(handshake.tlsVersion()).inc();
+      this.metrics.tlsCipherSuite(handshake.cipherSuite()).inc();
+    }
     this.delegate.secureConnectEnd(call, handshake);
   }
 
@@ -163,8 +666,11 @@ final class InstrumentedEventListener extends EventListener {
       @Nonnull InetSocketAddress inetSocketAddress,
       @Nonnull Proxy proxy,
       @Nullable Protocol protocol) {
-    this.connectionDurationContext.stop();
-    this.connectionEnd.mark();
+    connectAttemptEnded(CallTimeline.Event.CONNECT_END, inetSocketAddress);
+    this.metrics.connectionEnd.mark();
+    if (protocol != null) {
+      this.metrics.connectionProtocols[protocol.ordinal()].inc();
+    }
     this.delegate.connectEnd(call, inetSocketAddress, proxy, protocol);
   }
 
@@ -175,84 +681,389 @@ final class InstrumentedEventListener extends EventListener {
       @Nonnull Proxy proxy,
       @Nullable Protocol protocol,
       @Nonnull IOException ioe) {
-    this.connectionDurationContext.stop();
-    this.connectionFailed.mark();
+    connectAttemptEnded(CallTimeline.Event.CONNECT_FAILED, inetSocketAddress);
+    this.metrics.connectionFailed.mark();
     this.delegate.connectFailed(call, inetSocketAddress, proxy, protocol, ioe);
   }
 
   @Override
   public void connectionAcquired(@Nonnull Call call, @Nonnull Connection connection) {
-    this.connectionAcquired.mark();
+    record(CallTimeline.Event.CONNECTION_ACQUIRED);
+    this.metrics.connectionAcquired.mark();
+    this.metrics.connectionsHeld.inc();
+    this.connectionAcquiredTick = this.metrics.clock.getTick();
+    this.holdingConnection = true;
+    Protocol protocol = connection.protocol();
+    this.metrics.callProtocols[protocol.ordinal()].inc();
+    if (this.timeline != null) {
+      this.timeline.protocol(protocol);
+    }
+    this.multiplexing = this.metrics.multiplexedCallStarted(connection);
+    if (this.connecting) {
+      this.metrics.connectionAcquiredNew.mark();
+      this.connecting = false;
+    } else {
+      this.metrics.connectionAcquiredPooled.mark();
+    }
+    long handshakeStartMillis;
+    synchronized (this) {
+      handshakeStartMillis = this.secureConnectStartMillis;
+      this.secureConnectStartMillis = 0L;
+    }
+    if (handshakeStartMillis != 0L) {
+      recordHandshakeKind(connection, handshakeStartMillis);
+    }
     this.delegate.connectionAcquired(call, connection);
   }
 
   @Override
   public void connectionReleased(@Nonnull Call call, @Nonnull Connection connection) {
-    this.connectionReleased.mark();
+    record(CallTimeline.Event.CONNECTION_RELEASED);
+    this.metrics.connectionReleased.mark();
+    if (this.holdingConnection) {
+      stop(this.metrics.connectionHoldDuration, this.connectionAcquiredTick);
+      this.metrics.connectionsHeld.dec();
+      this.holdingConnection = false;
+    }
+    if (this.multiplexing) {
+      this.metrics.multiplexedCallEnded(connection);
+      this.multiplexing = false;
+    }
     this.delegate.connectionReleased(call, connection);
   }
 
   @Override
   public void requestHeadersStart(@Nonnull Call call) {
+    record(CallTimeline.Event.REQUEST_HEADERS_START);
+    this.requestStartTick = this.metrics.clock.getTick();
+    this.requestEndTick = 0L;
+    if (this.networkRoundTrips++ > 0) {
+      recordFollowUp();
+    }
+    this.lastResponseCode = 0;
     this.delegate.requestHeadersStart(call);
   }
 
   @Override
   public void requestHeadersEnd(@Nonnull Call call, @Nonnull Request request) {
+    record(CallTimeline.Event.REQUEST_HEADERS_END);
+    this.requestEndTick = this.metrics.clock.getTick();
     this.delegate.requestHeadersEnd(call, request);
   }
 
   @Override
   public void requestBodyStart(@Nonnull Call call) {
+    record(CallTimeline.Event.REQUEST_BODY_START);
+    this.requestBodyStartTick = this.metrics.clock.getTick();
     this.delegate.requestBodyStart(call);
   }
 
   @Override
   public void requestBodyEnd(@Nonnull Call call, long byteCount) {
+    record(CallTimeline.Event.REQUEST_BODY_END);
+    this.requestEndTick = this.metrics.clock.getTick();
+    this.metrics.requestBodyDuration.update(
+        this.requestEndTick - this.requestBodyStartTick, TimeUnit.NANOSECONDS);
+    this.metrics.requestBodySize.update(byteCount);
+    this.metrics.requestBodyBytes.mark(byteCount);
+    if (this.timeline != null) {
+      this.timeline.requestBodyBytes(byteCount);
+    }
     this.delegate.requestBodyEnd(call, byteCount);
   }
 
   @Override
   public void requestFailed(@Nonnull Call call, @Nonnull IOException ioe) {
+    record(CallTimeline.Event.REQUEST_FAILED);
     this.delegate.requestFailed(call, ioe);
   }
 
   @Override
   public void responseHeadersStart(@Nonnull Call call) {
+    record(CallTimeline.Event.RESPONSE_HEADERS_START);
+    this.responseHeadersStartTick = this.metrics.clock.getTick();
+    // The request has been written once its headers, and its body if it has one, have been written.
+    if (this.requestEndTick != 0L) {
+      long requestWrite = this.requestEndTick - this.requestStartTick;
+      long timeToFirstByte = this.responseHeadersStartTick - this.requestEndTick;
+      this.metrics.requestWriteDuration.update(requestWrite, TimeUnit.NANOSECONDS);
+      this.metrics.timeToFirstByte.update(timeToFirstByte, TimeUnit.NANOSECONDS);
+      this.requestWriteNanos += requestWrite;
+      this.timeToFirstByteNanos += timeToFirstByte;
+    }
     this.delegate.responseHeadersStart(call);
   }
 
   @Override
   public void responseHeadersEnd(@Nonnull Call call, @Nonnull Response response) {
+    record(CallTimeline.Event.RESPONSE_HEADERS_END);
+    stop(this.metrics.responseHeadersReadDuration, this.responseHeadersStartTick);
+    this.lastResponseCode = response.code();
+    if (this.timeline != null) {
+      this.timeline.code(this.lastResponseCode);
+    }
     this.delegate.responseHeadersEnd(call, response);
   }
 
   @Override
   public void responseBodyStart(@Nonnull Call call) {
+    record(CallTimeline.Event.RESPONSE_BODY_START);
+    this.responseBodyStartTick = this.metrics.clock.getTick();
     this.delegate.responseBodyStart(call);
   }
 
   @Override
   public void responseBodyEnd(@Nonnull Call call, long byteCount) {
+    record(CallTimeline.Event.RESPONSE_BODY_END);
+    this.responseBodyNanos += this.metrics.clock.getTick() - this.responseBodyStartTick;
+    this.metrics.responseBodySize.update(byteCount);
+    this.metrics.responseBodyBytes.mark(byteCount);
+    if (this.timeline != null) {
+      this.timeline.responseBodyBytes(byteCount);
+    }
     this.delegate.responseBodyEnd(call, byteCount);
   }
 
   @Override
   public void responseFailed(@Nonnull Call call, @Nonnull IOException ioe) {
+    record(CallTimeline.Event.RESPONSE_FAILED);
     this.delegate.responseFailed(call, ioe);
   }
 
+  @Override
+  public void cacheHit(@Nonnull Call call, @Nonnull Response response) {
+    record(CallTimeline.Event.CACHE_HIT);
+    this.metrics.cacheHit.mark();
+    // OkHttp also reports a conditional request the server answered with 304 as a hit.
+    this.cacheOutcome =
+        this.cacheOutcome == CACHE_CONDITIONAL_MISS ? CACHE_CONDITIONAL_HIT : CACHE_HIT;
+    this.delegate.cacheHit(call, response);
+  }
+
+  @Override
+  public void cacheConditionalHit(@Nonnull Call call, @Nonnull Response cachedResponse) {
+    record(CallTimeline.Event.CACHE_CONDITIONAL_HIT);
+    this.metrics.cacheConditionalHit.mark();
+    // A miss until OkHttp reports that the server answered with 304; for a new response it reports
+    // a miss if the response is cacheable, and nothing otherwise.
+    this.cacheOutcome = CACHE_CONDITIONAL_MISS;
+    this.delegate.cacheConditionalHit(call, cachedResponse);
+  }
+
+  @Override
+  public void cacheMiss(@Nonnull Call call) {
+    record(CallTimeline.Event.CACHE_MISS);
+    this.metrics.cacheMiss.mark();
+    if (this.cacheOutcome != CACHE_CONDITIONAL_MISS) {
+      this.cacheOutcome = CACHE_MISS;
+    }
+    this.delegate.cacheMiss(call);
+  }
+
+  @Override
+  public void satisfactionFailure(@Nonnull Call call, @Nonnull Response response) {
+    record(CallTimeline.Event.SATISFACTION_FAILURE);
+    this.metrics.cacheSatisfactionFailure.mark();
+    this.delegate.satisfactionFailure(call, response);
+  }
+
+  @Override
+  public void canceled(@Nonnull Call call) {
+    // Calls can be canceled from any thread, even after they ended and their timeline got reused.
+    this.canceled = true;
+    this.delegate.canceled(call);
+  }
+
   @Override
   public void callEnd(@Nonnull Call call) {
-    this.callDurationContext.stop();
-    this.callEnd.mark();
+    record(CallTimeline.Event.CALL_END);
+    neverExecuted(call);
+    long duration = stop(this.metrics.callDuration, this.callStartTick);
+    recordCacheOutcome(duration);
+    this.metrics.networkRoundTrips.update(this.networkRoundTrips);
+    recordConnectAttempts();
+    this.metrics.callEnd.mark();
+    if (this.hostMetrics != null) {
+      this.hostMetrics.callDuration.update(duration, TimeUnit.NANOSECONDS);
+      this.hostMetrics.callEnd.mark();
+    }
+    if (this.metrics.slowCalls != null && this.metrics.slowCalls.isSlow(duration)) {
+      captureSlowCall(this.metrics.slowCalls, call, duration, null);
+    }
+    publishTimeline(call);
     this.delegate.callEnd(call);
   }
 
   @Override
   public void callFailed(@Nonnull Call call, @Nonnull IOException ioe) {
-    this.callDurationContext.stop();
-    this.callFailed.mark();
+    record(CallTimeline.Event.CALL_FAILED);
+    neverExecuted(call);
+    long duration = stop(this.metrics.callDuration, this.callStartTick);
+    recordCacheOutcome(duration);
+    this.metrics.networkRoundTrips.update(this.networkRoundTrips);
+    recordConnectAttempts();
+    this.metrics.callFailed.mark();
+    if (this.hostMetrics != null) {
+      this.hostMetrics.callDuration.update(duration, TimeUnit.NANOSECONDS);
+      this.hostMetrics.callFailed.mark();
+    }
+    if (this.metrics.slowCalls != null && this.metrics.slowCalls.isSlow(duration)) {
+      captureSlowCall(this.metrics.slowCalls, call, duration, ioe);
+    }
+    publishTimeline(call);
     this.delegate.callFailed(call, ioe);
   }
+
+  /**
+   * Records the duration of the connect attempt to {@code address}, overall and for its address
+   * family. Attempts that weren't seen starting are ignored.
+   */
+  private void connectAttemptEnded(CallTimeline.Event event, InetSocketAddress address) {
+    long tick = this.metrics.clock.getTick();
+    Long startTick;
+    synchronized (this) {
+      record(event);
+      if (this.secureConnectStartTicks != null) {
+        // Drops the start of a handshake that failed along with its attempt.
+        this.secureConnectStartTicks.remove(Thread.currentThread());
+      }
+      startTick = this.connectStartTicks != null ? this.connectStartTicks.remove(address) : null;
+      if (startTick == null) {
+        return;
+      }
+      this.connectNanos += tick - startTick;
+    }
+    long elapsed = tick - startTick;
+    this.metrics.connectionDuration.update(elapsed, TimeUnit.NANOSECONDS);
+    InetAddress inetAddress = address.getAddress();
+    if (inetAddress instanceof Inet6Address) {
+      this.metrics.connectionDurationIpv6.update(elapsed, TimeUnit.NANOSECONDS);
+    } else if (inetAddress instanceof Inet4Address) {
+      this.metrics.connectionDurationIpv4.update(elapsed, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /** Records the number of connect attempts of this call, if it made any. */
+  private synchronized void recordConnectAttempts() {
+    if (this.connectAttempts > 0) {
+      this.metrics.connectionAttempts.update(this.connectAttempts);
+    }
+  }
+
+  /** Records that {@code event} just happened in this call's timeline, if it has one. */
+  private void record(CallTimeline.Event event) {
+    if (this.timeline != null) {
+      this.timeline.record(event, this.metrics.clock.getTick());
+    }
+  }
+
+  /** Hands this call's timeline, if it has one, to the sink and returns it to the pool. */
+  private void publishTimeline(Call call) {
+    CallTimeline timeline = this.timeline;
+    if (timeline != null && this.metrics.timelineSink != null && this.metrics.timelines != null) {
+      this.timeline = null;
+      timeline.canceled(this.canceled);
+      try {
+        this.metrics.timelineSink.accept(call, timeline);
+      } finally {
+        this.metrics.timelines.release(timeline);
+      }
+    }
+  }
+
+  /**
+   * Called by the {@link Factory#executionInterceptor() execution interceptor} on the thread
+   * executing the call, before any other interceptor. Records the time an asynchronous call waited
+   * in the dispatcher's queue.
+   */
+  private void executing() {
+    if (this.callStartThread != null) {
+      if (this.callStartThread != Thread.currentThread()) {
+        stop(this.metrics.dispatcherQueueDuration, this.callStartTick);
+      }
+      this.callStartThread = null;
+    }
+  }
+
+  /**
+   * Forgets this call if it ended without executing, e.g. because the dispatcher rejected it, or
+   * because the client isn't running the execution interceptor.
+   */
+  private void neverExecuted(Call call) {
+    if (this.callStartThread != null) {
+      this.metrics.awaitingExecution.remove(call);
+      this.callStartThread = null;
+    }
+  }
+
+  /**
+   * Records why this call sends another request over the network, judging by the response to the
+   * previous one: a redirect, an authentication challenge, or otherwise a retry, either of a
+   * request that failed or of one the server asked to be retried (e.g. 408 or 503).
+   */
+  private void recordFollowUp() {
+    int code = this.lastResponseCode;
+    if (code >= 300 && code < 400) {
+      this.metrics.followUpRedirect.mark();
+    } else if (code == 401 || code == 407) {
+      this.metrics.followUpAuth.mark();
+    } else {
+      this.metrics.followUpRetry.mark();
+    }
+  }
+
+  private synchronized void captureSlowCall(
+      SlowCallLog slowCalls, Call call, long duration, @Nullable IOException failure) {
+    slowCalls.add(
+        new SlowCall(
+            call.request().url().host(),
+            this.lastResponseCode,
+            failure != null ? failure.toString() : null,
+            System.currentTimeMillis(),
+            duration,
+            this.dnsNanos,
+            this.connectNanos,
+            this.tlsNanos,
+            this.requestWriteNanos,
+            this.timeToFirstByteNanos,
+            this.responseBodyNanos));
+  }
+
+  /** Records the call's {@code duration} by how the cache handled it. */
+  private void recordCacheOutcome(long duration) {
+    if (this.cacheOutcome != CACHE_NONE) {
+      Timer timer = this.metrics.callDurationByCacheOutcome[this.cacheOutcome];
+      timer.update(duration, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Records whether the TLS handshake of the connection this call just established was a full
+   * handshake or resumed an earlier session.
+   *
+   * <p>A resumed session was created before this call's first handshake started, at {@code
+   * handshakeStartMillis}, whereas a full handshake creates a new session.
+   */
+  private void recordHandshakeKind(Connection connection, long handshakeStartMillis) {
+    Socket socket = connection.socket();
+    if (socket instanceof SSLSocket) {
+      SSLSession session = ((SSLSocket) socket).getSession();
+      if (session.getCreationTime() < handshakeStartMillis) {
+        this.metrics.tlsHandshakeResumed.mark();
+      } else {
+        this.metrics.tlsHandshakeFull.mark();
+      }
+    }
+  }
+
+  /**
+   * Records the time elapsed since {@code startTick} with the given {@code timer}.
+   *
+   * @return the elapsed time, in nanoseconds.
+   */
+  private long stop(Timer timer, long startTick) {
+    long elapsed = this.metrics.clock.getTick() - startTick;
+    timer.update(elapsed, TimeUnit.NANOSECONDS);
+    return elapsed;
+  }
 }
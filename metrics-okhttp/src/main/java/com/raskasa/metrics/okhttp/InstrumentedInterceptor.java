@@ -20,12 +20,17 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 /**
  * An {@link Interceptor} that monitors the number of submitted, running, and completed network
- * requests. Also, keeps a {@link Timer} for the request duration.
+ * requests, and their response status codes. Also, keeps a {@link Timer} for the request duration,
+ * both overall and split by whether the request succeeded.
  */
 final class InstrumentedInterceptor implements Interceptor {
   private final Meter submitted;
@@ -33,24 +38,141 @@ final class InstrumentedInterceptor implements Interceptor {
   private final Meter completed;
   private final Timer duration;
 
-  InstrumentedInterceptor(MetricRegistry registry, String name) {
-    this.submitted = registry.meter(MetricRegistry.name(name, "network-requests-submitted"));
-    this.running = registry.counter(MetricRegistry.name(name, "network-requests-running"));
-    this.completed = registry.meter(MetricRegistry.name(name, "network-requests-completed"));
-    this.duration = registry.timer(MetricRegistry.name(name, "network-requests-duration"));
+  /** Requests that got a response with a status code below 400. */
+  private final Timer successDuration;
+
+  /** Requests that got a response with a status code of 400 or above, or no response at all. */
+  private final Timer errorDuration;
+
+  /** Responses by status class: index 0 holds 1xx responses, index 4 holds 5xx responses. */
+  private final Meter[] statusClasses = new Meter[5];
+
+  /** Responses by status code, for the configured codes only; indexed by the code itself. */
+  private final Meter[] statusCodes = new Meter[600];
+
+  /** How request bodies are written, or {@code null} if it isn't recorded. */
+  private final InstrumentedRequestBody.Metrics requestBodies;
+
+  /** How response bodies are read, or {@code null} if it isn't recorded. */
+  private final InstrumentedResponseBody.Metrics responseBodies;
+
+  /** The per-host request metrics, or {@code null} if they aren't recorded. */
+  private final HostMetricsCache<HostMetrics> hosts;
+
+  /** Requests made while this is disabled aren't recorded. */
+  private final InstrumentationToggle toggle;
+
+  /**
+   * @param maxHosts the number of hosts to record per-host request metrics for, or {@code 0} to not
+   *     record per-host metrics at all.
+   * @param statusCodes the status codes, from 100 to 599, that also get a meter of their own.
+   * @param instrumentRequestBodies whether to wrap request bodies to record how they are written.
+   * @param instrumentResponseBodies whether to wrap response bodies to record how they are read.
+   */
+  InstrumentedInterceptor(
+      MetricFactory factory,
+      String name,
+      int maxHosts,
+      int[] statusCodes,
+      boolean instrumentRequestBodies,
+      boolean instrumentResponseBodies,
+      InstrumentationToggle toggle) {
+    this.submitted = factory.meter(MetricRegistry.name(name, "network-requests-submitted"));
+    this.running = factory.counter(MetricRegistry.name(name, "network-requests-running"));
+    this.completed = factory.meter(MetricRegistry.name(name, "network-requests-completed"));
+    this.duration = factory.timer(MetricRegistry.name(name, "network-requests-duration"));
+    this.successDuration =
+        factory.timer(MetricRegistry.name(name, "network-requests-success-duration"));
+    this.errorDuration =
+        factory.timer(MetricRegistry.name(name, "network-requests-error-duration"));
+    for (int i = 0; i < statusClasses.length; i++) {
+      this.statusClasses[i] =
+          factory.meter(MetricRegistry.name(name, "network-requests-" + (i + 1) + "xx"));
+    }
+    for (int code : statusCodes) {
+      this.statusCodes[code] = factory.meter(MetricRegistry.name(name, "network-requests-" + code));
+    }
+    this.requestBodies =
+        instrumentRequestBodies ? new InstrumentedRequestBody.Metrics(factory, name) : null;
+    this.responseBodies =
+        instrumentResponseBodies ? new InstrumentedResponseBody.Metrics(factory, name) : null;
+    this.hosts =
+        maxHosts > 0
+            ? new HostMetricsCache<>(
+                factory.registry,
+                MetricRegistry.name(name, "hosts"),
+                maxHosts,
+                prefix -> new HostMetrics(factory, prefix))
+            : null;
+    this.toggle = toggle;
   }
 
   @Override
   public Response intercept(Chain chain) throws IOException {
+    if (!toggle.isEnabled()) {
+      return chain.proceed(chain.request());
+    }
+    final HostMetrics host = hosts != null ? hosts.get(chain.request().url().host()) : null;
     submitted.mark();
     running.inc();
+    if (host != null) {
+      host.submitted.mark();
+    }
     final Timer.Context context = duration.time();
+    Response response = null;
     try {
-      return chain.proceed(chain.request());
+      response = chain.proceed(instrumentRequestBody(chain.request()));
+      ResponseBody body = response.body();
+      if (responseBodies != null && body != null) {
+        response =
+            response.newBuilder().body(new InstrumentedResponseBody(body, responseBodies)).build();
+      }
+      return response;
     } finally {
-      context.stop();
+      long elapsed = context.stop();
       running.dec();
       completed.mark();
+      int code = response != null ? response.code() : 0;
+      if (code >= 100 && code < 600) {
+        statusClasses[code / 100 - 1].mark();
+        Meter statusCode = statusCodes[code];
+        if (statusCode != null) {
+          statusCode.mark();
+        }
+      }
+      if (code >= 100 && code < 400) {
+        successDuration.update(elapsed, TimeUnit.NANOSECONDS);
+      } else {
+        errorDuration.update(elapsed, TimeUnit.NANOSECONDS);
+      }
+      if (host != null) {
+        host.duration.update(elapsed, TimeUnit.NANOSECONDS);
+        host.completed.mark();
+      }
+    }
+  }
+
+  private Request instrumentRequestBody(Request request) {
+    RequestBody body = request.body();
+    if (requestBodies == null || body == null || body.isDuplex()) {
+      return request;
+    }
+    return request
+        .newBuilder()
+        .method(request.method(), new InstrumentedRequestBody(body, requestBodies))
+        .build();
+  }
+
+  /** The request metrics recorded for a single host. */
+  private static final class HostMetrics {
+    final Meter submitted;
+    final Meter completed;
+    final Timer duration;
+
+    HostMetrics(MetricFactory factory, String name) {
+      this.submitted = factory.meter(MetricRegistry.name(name, "network-requests-submitted"));
+      this.completed = factory.meter(MetricRegistry.name(name, "network-requests-completed"));
+      this.duration = factory.timer(MetricRegistry.name(name, "network-requests-duration"));
     }
   }
 }
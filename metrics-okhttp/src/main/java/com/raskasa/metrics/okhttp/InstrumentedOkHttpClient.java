@@ -17,10 +17,14 @@ package com.raskasa.metrics.okhttp;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
+import com.codahale.metrics.CachedGauge;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.RatioGauge;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import okhttp3.Dns;
 import okhttp3.EventListener;
 import okhttp3.OkHttpClient;
 import org.slf4j.Logger;
@@ -31,16 +35,37 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
   private static final Logger LOG = LoggerFactory.getLogger(InstrumentedOkHttpClient.class);
 
   public static OkHttpClient build(MetricRegistry registry, OkHttpClient rawClient, String name) {
+    return InstrumentedOkHttpClients.builder(registry).client(rawClient).name(name).build();
+  }
+
+  static OkHttpClient build(InstrumentedOkHttpClients.Builder config) {
+    MetricRegistry registry = config.registry;
+    MetricFactory factory = new MetricFactory(registry, config.reservoir);
+    OkHttpClient rawClient = config.client != null ? config.client : new OkHttpClient();
+    String name = config.name;
+
     Builder builder = rawClient.newBuilder();
     EventListener.Factory eventListenerFactory = rawClient.eventListenerFactory();
-    instrumentNetworkRequests(builder, registry, name);
-    instrumentEventListener(builder, eventListenerFactory, registry, name);
+    if (config.instrumentNetworkRequests) {
+      instrumentNetworkRequests(builder, factory, config);
+    }
+    if (config.instrumentEventListener) {
+      instrumentEventListener(builder, eventListenerFactory, factory, config);
+    }
+    if (config.instrumentDns || config.dnsCacheMaxSize > 0) {
+      instrumentDns(builder, rawClient, factory, config);
+    }
 
     OkHttpClient client = builder.build();
-    if (rawClient.cache() != null) {
-      instrumentHttpCache(client, registry, name);
+    if (config.instrumentCache && rawClient.cache() != null) {
+      instrumentHttpCache(client, registry, name, config.cacheStatsRefreshNanos);
+    }
+    if (config.instrumentConnectionPool) {
+      instrumentConnectionPool(client, registry, name);
+    }
+    if (config.instrumentDispatcher) {
+      instrumentDispatcher(client, registry, name);
     }
-    instrumentConnectionPool(client, registry, name);
 
     return client;
   }
@@ -62,14 +87,23 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
   }
 
   private static void instrumentHttpCache(
-      OkHttpClient client, MetricRegistry registry, String name) {
+      OkHttpClient client, MetricRegistry registry, String name, long refreshIntervalNanos) {
+    // Every cache gauge is served from one snapshot of the cache's statistics, so a reporter
+    // polling them doesn't lock the cache once per gauge.
+    final CachedGauge<CacheStats> stats =
+        new CachedGauge<CacheStats>(refreshIntervalNanos, TimeUnit.NANOSECONDS) {
+          @Override
+          protected CacheStats loadValue() {
+            return new CacheStats(client.cache());
+          }
+        };
     registry.register(
         metricId(name, "cache-request-count"),
         new Gauge<Integer>() {
           @Override
           public Integer getValue() {
             // The number of HTTP requests issued since this cache was created.
-            return client.cache().requestCount();
+            return stats.getValue().requestCount;
           }
         });
     registry.register(
@@ -78,7 +112,7 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
           @Override
           public Integer getValue() {
             // ... the number of those requests that required network use.
-            return client.cache().hitCount();
+            return stats.getValue().hitCount;
           }
         });
     registry.register(
@@ -87,7 +121,7 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
           @Override
           public Integer getValue() {
             // ... the number of those requests whose responses were served by the cache.
-            return client.cache().networkCount();
+            return stats.getValue().networkCount;
           }
         });
     registry.register(
@@ -95,7 +129,7 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
         new Gauge<Integer>() {
           @Override
           public Integer getValue() {
-            return client.cache().writeSuccessCount();
+            return stats.getValue().writeSuccessCount;
           }
         });
     registry.register(
@@ -103,40 +137,66 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
         new Gauge<Integer>() {
           @Override
           public Integer getValue() {
-            return client.cache().writeAbortCount();
+            return stats.getValue().writeAbortCount;
           }
         });
-    final Gauge<Long> currentCacheSize =
+    registry.register(
+        metricId(name, "cache-current-size"),
         new Gauge<Long>() {
           @Override
           public Long getValue() {
-            try {
-              return client.cache().size();
-            } catch (IOException ex) {
-              LOG.error(ex.getMessage(), ex);
-              return -1L;
-            }
+            return stats.getValue().size;
           }
-        };
-    final Gauge<Long> maxCacheSize =
+        });
+    registry.register(
+        metricId(name, "cache-max-size"),
         new Gauge<Long>() {
           @Override
           public Long getValue() {
-            return client.cache().maxSize();
+            return stats.getValue().maxSize;
           }
-        };
-    registry.register(metricId(name, "cache-current-size"), currentCacheSize);
-    registry.register(metricId(name, "cache-max-size"), maxCacheSize);
+        });
     registry.register(
         metricId(name, "cache-size"),
         new RatioGauge() {
           @Override
           protected Ratio getRatio() {
-            return Ratio.of(currentCacheSize.getValue(), maxCacheSize.getValue());
+            CacheStats snapshot = stats.getValue();
+            return Ratio.of(snapshot.size, snapshot.maxSize);
           }
         });
   }
 
+  /** A snapshot of the statistics of a {@link Cache}. */
+  private static final class CacheStats {
+    final int requestCount;
+    final int hitCount;
+    final int networkCount;
+    final int writeSuccessCount;
+    final int writeAbortCount;
+    final long size;
+    final long maxSize;
+
+    CacheStats(Cache cache) {
+      this.requestCount = cache.requestCount();
+      this.hitCount = cache.hitCount();
+      this.networkCount = cache.networkCount();
+      this.writeSuccessCount = cache.writeSuccessCount();
+      this.writeAbortCount = cache.writeAbortCount();
+      this.size = size(cache);
+      this.maxSize = cache.maxSize();
+    }
+
+    private static long size(Cache cache) {
+      try {
+        return cache.size();
+      } catch (IOException ex) {
+        LOG.error(ex.getMessage(), ex);
+        return -1L;
+      }
+    }
+  }
+
   private static void instrumentConnectionPool(
       OkHttpClient client, MetricRegistry registry, String name) {
     registry.register(
@@ -157,19 +217,80 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
         });
   }
 
+  private static void instrumentDispatcher(
+      OkHttpClient client, MetricRegistry registry, String name) {
+    registry.register(
+        metricId(name, "dispatcher-queued-count"),
+        new Gauge<Integer>() {
+          @Override
+          public Integer getValue() {
+            // Asynchronous calls held back by the dispatcher's maxRequests/maxRequestsPerHost.
+            return client.dispatcher().queuedCallsCount();
+          }
+        });
+    registry.register(
+        metricId(name, "dispatcher-running-count"),
+        new Gauge<Integer>() {
+          @Override
+          public Integer getValue() {
+            return client.dispatcher().runningCallsCount();
+          }
+        });
+  }
+
+  private static void instrumentDns(
+      Builder builder,
+      OkHttpClient rawClient,
+      MetricFactory factory,
+      InstrumentedOkHttpClients.Builder config) {
+    String prefix = name(Dns.class, config.name);
+    Dns dns = rawClient.dns();
+    if (config.instrumentDns) {
+      dns = new InstrumentedDns(dns, factory, prefix, config.maxHosts);
+    }
+    if (config.dnsCacheMaxSize > 0) {
+      // Refreshes block on lookups, like calls do, so they run on the dispatcher's threads.
+      dns =
+          new CachingDns(
+              dns,
+              config.dnsCacheTtlNanos,
+              config.dnsCacheMaxSize,
+              rawClient.dispatcher().executorService(),
+              factory,
+              prefix);
+    }
+    builder.dns(dns);
+  }
+
   private static void instrumentNetworkRequests(
-      Builder builder, MetricRegistry registry, String name) {
+      Builder builder, MetricFactory factory, InstrumentedOkHttpClients.Builder config) {
     builder.addNetworkInterceptor(
-        new InstrumentedInterceptor(registry, name(OkHttpClient.class, name)));
+        new InstrumentedInterceptor(
+            factory,
+            name(OkHttpClient.class, config.name),
+            config.maxHosts,
+            config.statusCodes,
+            config.instrumentRequestBodies,
+            config.instrumentResponseBodies,
+            config.toggle));
   }
 
   private static void instrumentEventListener(
       Builder builder,
       EventListener.Factory eventListenerFactory,
-      MetricRegistry registry,
-      String name) {
-    builder.eventListenerFactory(
+      MetricFactory factory,
+      InstrumentedOkHttpClients.Builder config) {
+    InstrumentedEventListener.Factory listenerFactory =
         new InstrumentedEventListener.Factory(
-            registry, eventListenerFactory, name(EventListener.class, name)));
+            factory,
+            eventListenerFactory,
+            name(EventListener.class, config.name),
+            config.maxHosts,
+            config.sampleRate,
+            config.toggle,
+            config.slowCallLog,
+            config.callTimelineSink);
+    builder.eventListenerFactory(listenerFactory);
+    builder.interceptors().add(0, listenerFactory.executionInterceptor());
   }
 }
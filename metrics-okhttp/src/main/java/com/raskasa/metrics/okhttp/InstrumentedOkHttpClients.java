@@ -16,7 +16,11 @@
 package com.raskasa.metrics.okhttp;
 
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reservoir;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import okhttp3.OkHttpClient;
+import okhttp3.WebSocket;
 
 /** Static factory methods for instrumenting an {@link OkHttpClient}. */
 public final class InstrumentedOkHttpClients {
@@ -51,6 +55,314 @@ public final class InstrumentedOkHttpClients {
     return InstrumentedOkHttpClient.build(registry, client, name);
   }
 
+  /**
+   * Returns a factory of web sockets that are created by {@code client} and instrumented, recording
+   * their messages, lifetime, and outbound backlog.
+   */
+  public static WebSocket.Factory webSocketFactory(MetricRegistry registry, OkHttpClient client) {
+    return webSocketFactory(registry, client, null);
+  }
+
+  /**
+   * Returns a factory of web sockets that are created by {@code client} and instrumented, with
+   * metrics identified by the provided {@code name}.
+   *
+   * <p>The metrics are named after {@code okhttp3.WebSocket} and {@code name}, e.g. {@code
+   * okhttp3.WebSocket.custom-name.queue-size}. Every web socket created by the same factory shares
+   * them; create one factory per name.
+   */
+  public static WebSocket.Factory webSocketFactory(
+      MetricRegistry registry, OkHttpClient client, String name) {
+    return new InstrumentedWebSocketListener.Factory(
+        client, new MetricFactory(registry, null), MetricRegistry.name(WebSocket.class, name));
+  }
+
+  /**
+   * Returns a factory of web sockets that are created by {@code client} and instrumented, with
+   * metrics identified by the provided {@code name}, and timers and histograms backed by
+   * reservoirs from {@code reservoir}, like {@link Builder#reservoir(Supplier)}.
+   */
+  public static WebSocket.Factory webSocketFactory(
+      MetricRegistry registry, OkHttpClient client, String name, Supplier<Reservoir> reservoir) {
+    if (reservoir == null) {
+      throw new NullPointerException("reservoir == null");
+    }
+    return new InstrumentedWebSocketListener.Factory(
+        client, new MetricFactory(registry, reservoir), MetricRegistry.name(WebSocket.class, name));
+  }
+
+  /**
+   * Returns a builder for instrumenting an {@link OkHttpClient}, for when the metrics recorded by
+   * the {@code create} methods need to be configured.
+   */
+  public static Builder builder(MetricRegistry registry) {
+    return new Builder(registry);
+  }
+
+  /** Configures how an {@link OkHttpClient} is instrumented. */
+  public static final class Builder {
+    final MetricRegistry registry;
+    OkHttpClient client;
+    String name;
+    int maxHosts;
+    int sampleRate = 1;
+    int[] statusCodes = new int[0];
+    Supplier<Reservoir> reservoir;
+    InstrumentationToggle toggle = new InstrumentationToggle();
+    SlowCallLog slowCallLog;
+    CallTimelineSink callTimelineSink;
+    boolean instrumentEventListener = true;
+    boolean instrumentNetworkRequests = true;
+    boolean instrumentCache = true;
+    boolean instrumentConnectionPool = true;
+    boolean instrumentDispatcher = true;
+    boolean instrumentDns;
+    long dnsCacheTtlNanos;
+    int dnsCacheMaxSize;
+    boolean instrumentRequestBodies;
+    boolean instrumentResponseBodies;
+    long cacheStatsRefreshNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private Builder(MetricRegistry registry) {
+      if (registry == null) {
+        throw new NullPointerException("registry == null");
+      }
+      this.registry = registry;
+    }
+
+    /** The client to instrument. If not set, a new {@link OkHttpClient} is created. */
+    public Builder client(OkHttpClient client) {
+      this.client = client;
+      return this;
+    }
+
+    /**
+     * An identifier for the instrumented client. This is useful in situations where you have more
+     * than one instrumented client in your application.
+     */
+    public Builder name(String name) {
+      this.name = name;
+      return this;
+    }
+
+    /**
+     * Also record call and network request metrics per host, for at most {@code maxHosts} hosts.
+     *
+     * <p>Per-host metrics are named after the host, e.g. {@code
+     * okhttp3.EventListener.hosts.example.com.calls-duration}. Once {@code maxHosts} hosts are
+     * being recorded, a host that has been idle for a few minutes makes room for a new one;
+     * otherwise the new host is recorded under {@code other}, which keeps the number of metrics
+     * bounded no matter how many hosts the client talks to.
+     */
+    public Builder hostMetrics(int maxHosts) {
+      if (maxHosts <= 0) {
+        throw new IllegalArgumentException("maxHosts <= 0: " + maxHosts);
+      }
+      this.maxHosts = maxHosts;
+      return this;
+    }
+
+    /**
+     * Also record a meter of network responses for each of the given status codes, e.g. {@code
+     * network-requests-429} and {@code network-requests-503}, next to the meters per status class
+     * that are always recorded.
+     */
+    public Builder statusCodeMetrics(int... statusCodes) {
+      for (int statusCode : statusCodes) {
+        if (statusCode < 100 || statusCode > 599) {
+          throw new IllegalArgumentException("statusCode out of range: " + statusCode);
+        }
+      }
+      this.statusCodes = statusCodes.clone();
+      return this;
+    }
+
+    /**
+     * Record the detailed, per-phase event listener metrics (DNS, connections, TLS, request and
+     * response timings and sizes) for a random sample of 1 in {@code sampleRate} calls.
+     *
+     * <p>Every call still marks {@code calls-start}, {@code calls-end} and {@code calls-failed},
+     * and updates the {@code connections-held} and {@code connections-multiplexed-calls} gauges,
+     * which would be off by the sampling rate otherwise. Calls that aren't sampled don't record
+     * anything else, and cost close to nothing: unless the client has its own event listener, they
+     * share a single stateless listener. Defaults to 1, sampling every call.
+     */
+    public Builder sampleCallDetails(int sampleRate) {
+      if (sampleRate <= 0) {
+        throw new IllegalArgumentException("sampleRate <= 0: " + sampleRate);
+      }
+      this.sampleRate = sampleRate;
+      return this;
+    }
+
+    /**
+     * The reservoirs backing every timer and histogram of the instrumented client, e.g. {@code
+     * SlidingTimeWindowArrayReservoir} or {@code LockFreeExponentiallyDecayingReservoir} for less
+     * contention than the default {@code ExponentiallyDecayingReservoir} under heavy concurrency.
+     *
+     * <p>The supplier is only used to create metrics that aren't registered yet; it doesn't replace
+     * the reservoir of a metric that already exists in the registry.
+     */
+    public Builder reservoir(Supplier<Reservoir> reservoir) {
+      if (reservoir == null) {
+        throw new NullPointerException("reservoir == null");
+      }
+      this.reservoir = reservoir;
+      return this;
+    }
+
+    /**
+     * Whether to record the {@code okhttp3.EventListener} metrics: calls, DNS, connections, TLS,
+     * and request and response phases. Defaults to true.
+     */
+    public Builder instrumentEventListener(boolean enabled) {
+      this.instrumentEventListener = enabled;
+      return this;
+    }
+
+    /**
+     * Whether to record the {@code network-requests} metrics with a network interceptor. Defaults
+     * to true.
+     */
+    public Builder instrumentNetworkRequests(boolean enabled) {
+      this.instrumentNetworkRequests = enabled;
+      return this;
+    }
+
+    /**
+     * Whether to wrap the client's {@link okhttp3.Dns} to record the latency and failures of its
+     * lookups, {@code okhttp3.Dns.lookups-duration} and {@code okhttp3.Dns.lookups-failed}, and per
+     * hostname too if {@link #hostMetrics(int) host metrics} are recorded. Defaults to false.
+     */
+    public Builder instrumentDns(boolean enabled) {
+      this.instrumentDns = enabled;
+      return this;
+    }
+
+    /**
+     * Cache the lookups of the client's {@link okhttp3.Dns} in memory for {@code ttl}, for at most
+     * {@code maxSize} hostnames.
+     *
+     * <p>Hostnames in use are refreshed in the background, on the client's dispatcher threads,
+     * before they expire. If an expired hostname can't be resolved its previous addresses are
+     * served instead, and for a few seconds after that without waiting for the resolver, for at
+     * most another {@code ttl} after they expired. Records the {@code okhttp3.Dns.cache-hits},
+     * {@code cache-misses}, {@code cache-refreshes} and {@code cache-stale-served} meters.
+     */
+    public Builder dnsCache(long ttl, TimeUnit unit, int maxSize) {
+      if (ttl <= 0) {
+        throw new IllegalArgumentException("ttl <= 0: " + ttl);
+      }
+      if (maxSize <= 0) {
+        throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+      }
+      this.dnsCacheTtlNanos = unit.toNanos(ttl);
+      this.dnsCacheMaxSize = maxSize;
+      return this;
+    }
+
+    /**
+     * Whether to record how request bodies are written: the upload throughput, and the time spent
+     * blocked writing to the socket, and the number of such stalls, when the network or the server
+     * doesn't keep up. Duplex request bodies aren't recorded.
+     *
+     * <p>Request bodies are wrapped by the network interceptor, so this has no effect unless
+     * {@link #instrumentNetworkRequests(boolean) network requests are instrumented}. Defaults to
+     * false.
+     */
+    public Builder instrumentRequestBodies(boolean enabled) {
+      this.instrumentRequestBodies = enabled;
+      return this;
+    }
+
+    /**
+     * Whether to record how response bodies are read: the time spent waiting for the network and
+     * the time the application spent between reads, the throughput, and the time from the response
+     * headers to the last byte. Tells a slow server from slow consumption of a streamed body.
+     *
+     * <p>Response bodies are wrapped by the network interceptor, so this has no effect unless
+     * {@link #instrumentNetworkRequests(boolean) network requests are instrumented}. Defaults to
+     * false.
+     */
+    public Builder instrumentResponseBodies(boolean enabled) {
+      this.instrumentResponseBodies = enabled;
+      return this;
+    }
+
+    /** Whether to register gauges for the client's cache, if it has one. Defaults to true. */
+    public Builder instrumentCache(boolean enabled) {
+      this.instrumentCache = enabled;
+      return this;
+    }
+
+    /**
+     * How long the cache gauges may serve the same snapshot of the cache's statistics. Reading
+     * them locks the cache, so they are read all at once, at most this often, rather than every
+     * time a gauge is polled. Defaults to 1 second.
+     */
+    public Builder cacheStatsRefreshInterval(long interval, TimeUnit unit) {
+      if (interval < 0) {
+        throw new IllegalArgumentException("interval < 0: " + interval);
+      }
+      this.cacheStatsRefreshNanos = unit.toNanos(interval);
+      return this;
+    }
+
+    /** Whether to register gauges for the client's connection pool. Defaults to true. */
+    public Builder instrumentConnectionPool(boolean enabled) {
+      this.instrumentConnectionPool = enabled;
+      return this;
+    }
+
+    /** Whether to register gauges for the client's dispatcher. Defaults to true. */
+    public Builder instrumentDispatcher(boolean enabled) {
+      this.instrumentDispatcher = enabled;
+      return this;
+    }
+
+    /**
+     * A toggle to turn the per-call instrumentation off, and back on, at runtime. The same toggle
+     * can be shared by several clients.
+     */
+    public Builder toggle(InstrumentationToggle toggle) {
+      if (toggle == null) {
+        throw new NullPointerException("toggle == null");
+      }
+      this.toggle = toggle;
+      return this;
+    }
+
+    /**
+     * Record the phase breakdown of calls that take longer than the log's threshold into {@code
+     * slowCallLog}, and register a {@code slow-calls-captured} gauge of how many were recorded.
+     */
+    public Builder slowCallLog(SlowCallLog slowCallLog) {
+      if (slowCallLog == null) {
+        throw new NullPointerException("slowCallLog == null");
+      }
+      this.slowCallLog = slowCallLog;
+      return this;
+    }
+
+    /**
+     * Hand the {@link CallTimeline timeline} of every call whose detailed metrics are recorded to
+     * {@code callTimelineSink} when the call ends or fails. Timelines are pooled and reused, so
+     * recording them allocates close to nothing.
+     */
+    public Builder callTimelineSink(CallTimelineSink callTimelineSink) {
+      if (callTimelineSink == null) {
+        throw new NullPointerException("callTimelineSink == null");
+      }
+      this.callTimelineSink = callTimelineSink;
+      return this;
+    }
+
+    /** Instrument the client. */
+    public OkHttpClient build() {
+      return InstrumentedOkHttpClient.build(this);
+    }
+  }
+
   private InstrumentedOkHttpClients() {
     // No instances.
   }
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * A {@link RequestBody} that records how it's written to the network: the upload throughput, and
+ * the time spent blocked writing to the socket because the peer or the network doesn't keep up.
+ *
+ * <p>The sink is wrapped with a {@link ForwardingSink}, which hands the written buffers through to
+ * the network sink. Okio moves segments between buffers rather than copying bytes, so writing
+ * through this body doesn't copy or retain more data than writing the original one. Duplex bodies,
+ * which are written after {@link #writeTo} returns, aren't wrapped.
+ */
+final class InstrumentedRequestBody extends RequestBody {
+  /** Writes and flushes that block at least this long are counted as stalls. */
+  private static final long STALL_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** The request body metrics recorded for a single instrumented client. */
+  static final class Metrics {
+    final Clock clock;
+    final Timer writeDuration;
+    final Meter writeStalls;
+
+    /** Bytes written per second, from the start to the end of writing the body. */
+    final Histogram uploadRate;
+
+    Metrics(@Nonnull MetricFactory factory, @Nullable String name) {
+      this.clock = Clock.defaultClock();
+      this.writeDuration =
+          factory.timer(MetricRegistry.name(name, "network-request-body-write-duration"));
+      this.writeStalls =
+          factory.meter(MetricRegistry.name(name, "network-request-body-write-stalls"));
+      this.uploadRate =
+          factory.histogram(MetricRegistry.name(name, "network-request-body-upload-rate"));
+    }
+  }
+
+  private final RequestBody delegate;
+  private final Metrics metrics;
+
+  InstrumentedRequestBody(@Nonnull RequestBody delegate, @Nonnull Metrics metrics) {
+    this.delegate = delegate;
+    this.metrics = metrics;
+  }
+
+  @Nullable
+  @Override
+  public MediaType contentType() {
+    return delegate.contentType();
+  }
+
+  @Override
+  public long contentLength() throws IOException {
+    return delegate.contentLength();
+  }
+
+  @Override
+  public boolean isOneShot() {
+    return delegate.isOneShot();
+  }
+
+  @Override
+  public void writeTo(@Nonnull BufferedSink sink) throws IOException {
+    InstrumentedSink instrumented = new InstrumentedSink(sink);
+    BufferedSink buffered = Okio.buffer(instrumented);
+    long start = metrics.clock.getTick();
+    delegate.writeTo(buffered);
+    // The network sink only sends complete segments until it's flushed, so without flushing the
+    // tail of the body, all of it for most bodies, would only be sent once OkHttp closes the sink,
+    // after this has returned.
+    buffered.flush();
+    instrumented.record(metrics.clock.getTick() - start);
+  }
+
+  private final class InstrumentedSink extends ForwardingSink {
+    /** Time spent blocked in writes and flushes of the network sink, in nanoseconds. */
+    private long writeNanos;
+
+    private long byteCount;
+
+    InstrumentedSink(Sink delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public void write(@Nonnull Buffer source, long byteCount) throws IOException {
+      long start = metrics.clock.getTick();
+      super.write(source, byteCount);
+      written(start);
+      this.byteCount += byteCount;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      long start = metrics.clock.getTick();
+      super.flush();
+      written(start);
+    }
+
+    private void written(long start) {
+      long elapsed = metrics.clock.getTick() - start;
+      writeNanos += elapsed;
+      if (elapsed >= STALL_THRESHOLD_NANOS) {
+        metrics.writeStalls.mark();
+      }
+    }
+
+    /** Records how the body was written, once it has been written entirely in {@code nanos}. */
+    void record(long nanos) {
+      metrics.writeDuration.update(writeNanos, TimeUnit.NANOSECONDS);
+      if (nanos > 0L) {
+        double seconds = (double) nanos / TimeUnit.SECONDS.toNanos(1);
+        metrics.uploadRate.update((long) (byteCount / seconds));
+      }
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * A {@link ResponseBody} that records how its source is read: the time spent waiting on the
+ * network, the time the consumer spent between reads, and the read throughput.
+ *
+ * <p>The source is wrapped with a {@link ForwardingSource}, which passes the caller's buffer
+ * through to the network source. Okio moves segments between buffers rather than copying bytes, so
+ * reading through this body doesn't copy or retain more data than reading the original one.
+ */
+final class InstrumentedResponseBody extends ResponseBody {
+  /** The response body metrics recorded for a single instrumented client. */
+  static final class Metrics {
+    final Clock clock;
+    final Timer readDuration;
+    final Timer stallDuration;
+    final Timer lastByteDuration;
+
+    /** Bytes read per second spent reading, which leaves out the time the consumer stalled. */
+    final Histogram readRate;
+
+    Metrics(@Nonnull MetricFactory factory, @Nullable String name) {
+      this.clock = Clock.defaultClock();
+      this.readDuration =
+          factory.timer(MetricRegistry.name(name, "network-response-body-read-duration"));
+      this.stallDuration =
+          factory.timer(MetricRegistry.name(name, "network-response-body-stall-duration"));
+      this.lastByteDuration =
+          factory.timer(MetricRegistry.name(name, "network-response-body-last-byte-duration"));
+      this.readRate =
+          factory.histogram(MetricRegistry.name(name, "network-response-body-read-rate"));
+    }
+  }
+
+  private final ResponseBody delegate;
+  private final Metrics metrics;
+
+  /** The tick of the metrics' clock the response headers were received at. */
+  private final long headersTick;
+
+  @Nullable private BufferedSource source;
+
+  InstrumentedResponseBody(@Nonnull ResponseBody delegate, @Nonnull Metrics metrics) {
+    this.delegate = delegate;
+    this.metrics = metrics;
+    this.headersTick = metrics.clock.getTick();
+  }
+
+  @Nullable
+  @Override
+  public MediaType contentType() {
+    return delegate.contentType();
+  }
+
+  @Override
+  public long contentLength() {
+    return delegate.contentLength();
+  }
+
+  @Nonnull
+  @Override
+  public BufferedSource source() {
+    if (source == null) {
+      source = Okio.buffer(new InstrumentedSource(delegate.source()));
+    }
+    return source;
+  }
+
+  private final class InstrumentedSource extends ForwardingSource {
+    /** Time spent in reads of the network source, in nanoseconds. */
+    private long readNanos;
+
+    /**
+     * Time spent between reads, from the headers to the first read, and from the last read to
+     * closing a body that wasn't read entirely, in nanoseconds.
+     */
+    private long stallNanos;
+
+    private long lastReadTick = headersTick;
+    private long byteCount;
+    private boolean readStarted;
+    private boolean recorded;
+
+    InstrumentedSource(Source delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public long read(@Nonnull Buffer sink, long byteCount) throws IOException {
+      long start = metrics.clock.getTick();
+      stallNanos += start - lastReadTick;
+      readStarted = true;
+      long read = super.read(sink, byteCount);
+      lastReadTick = metrics.clock.getTick();
+      readNanos += lastReadTick - start;
+      if (read == -1L) {
+        record(true);
+      } else {
+        this.byteCount += read;
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      record(false);
+      super.close();
+    }
+
+    /**
+     * Records how the body was read, once it has been read entirely or closed, whichever comes
+     * first. Only bodies that were read entirely have a last byte. Bodies closed without being read
+     * at all, such as those of redirects and revalidations, aren't recorded, so that they don't
+     * drag the read and stall durations down.
+     */
+    private void record(boolean exhausted) {
+      if (recorded) {
+        return;
+      }
+      recorded = true;
+      if (!readStarted) {
+        return;
+      }
+      if (!exhausted) {
+        // The consumer stopped reading before the end: it stalled until it closed the body.
+        stallNanos += metrics.clock.getTick() - lastReadTick;
+      }
+      metrics.readDuration.update(readNanos, TimeUnit.NANOSECONDS);
+      metrics.stallDuration.update(stallNanos, TimeUnit.NANOSECONDS);
+      if (exhausted) {
+        metrics.lastByteDuration.update(lastReadTick - headersTick, TimeUnit.NANOSECONDS);
+      }
+      if (readNanos > 0L) {
+        double seconds = (double) readNanos / TimeUnit.SECONDS.toNanos(1);
+        metrics.readRate.update((long) (byteCount / seconds));
+      }
+    }
+  }
+}
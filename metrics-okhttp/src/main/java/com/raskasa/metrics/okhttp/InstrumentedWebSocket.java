@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okio.ByteString;
+import okio.Utf8;
+
+/**
+ * A {@link WebSocket} that records the messages sent through it, and otherwise delegates to the web
+ * socket created by OkHttp.
+ */
+final class InstrumentedWebSocket implements WebSocket {
+  private final InstrumentedWebSocketListener.Metrics metrics;
+
+  /**
+   * OkHttp's web socket. It's attached once the client created it, or by the first event the
+   * listener receives, whichever comes first.
+   */
+  private volatile WebSocket delegate;
+
+  InstrumentedWebSocket(@Nonnull InstrumentedWebSocketListener.Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  void attach(@Nonnull WebSocket delegate) {
+    this.delegate = delegate;
+  }
+
+  @Nonnull
+  @Override
+  public Request request() {
+    return this.delegate.request();
+  }
+
+  @Override
+  public long queueSize() {
+    return this.delegate.queueSize();
+  }
+
+  @Override
+  public boolean send(@Nonnull String text) {
+    boolean enqueued = this.delegate.send(text);
+    if (enqueued) {
+      this.metrics.sent(Utf8.size(text));
+    }
+    return enqueued;
+  }
+
+  @Override
+  public boolean send(@Nonnull ByteString bytes) {
+    boolean enqueued = this.delegate.send(bytes);
+    if (enqueued) {
+      this.metrics.sent(bytes.size());
+    }
+    return enqueued;
+  }
+
+  @Override
+  public boolean close(int code, @Nullable String reason) {
+    return this.delegate.close(code, reason);
+  }
+
+  @Override
+  public void cancel() {
+    this.delegate.cancel();
+  }
+}
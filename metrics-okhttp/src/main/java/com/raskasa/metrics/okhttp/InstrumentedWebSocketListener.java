@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+import okio.Utf8;
+
+/**
+ * A {@link WebSocketListener} that records metrics around the messages, lifetime, and outbound
+ * backlog of web sockets using Dropwizard Metrics, and forwards every event to the user-provided
+ * listener.
+ *
+ * <p>The user-provided listener receives the {@link InstrumentedWebSocket instrumented web socket}
+ * rather than OkHttp's, so that messages it sends in response to events are recorded too.
+ */
+final class InstrumentedWebSocketListener extends WebSocketListener {
+  /** Creates web sockets that share the metrics of a single name. */
+  static final class Factory implements WebSocket.Factory {
+    private final OkHttpClient client;
+    private final Metrics metrics;
+
+    Factory(@Nonnull OkHttpClient client, @Nonnull MetricFactory factory, @Nullable String name) {
+      this.client = client;
+      this.metrics = new Metrics(factory, name);
+    }
+
+    @Nonnull
+    @Override
+    public WebSocket newWebSocket(@Nonnull Request request, @Nonnull WebSocketListener listener) {
+      InstrumentedWebSocket webSocket = new InstrumentedWebSocket(this.metrics);
+      webSocket.attach(
+          this.client.newWebSocket(
+              request, new InstrumentedWebSocketListener(this.metrics, webSocket, listener)));
+      return webSocket;
+    }
+  }
+
+  /** The metrics recorded for the web sockets of a single name. */
+  static final class Metrics {
+    /** The {@link #closeCodes} key of the codes RFC 6455 doesn't define. */
+    private static final int OTHER_CLOSE_CODES = 0;
+
+    private final MetricFactory factory;
+    private final String name;
+
+    final Clock clock;
+
+    final Counter open;
+    final Timer duration;
+
+    final Meter messagesSent;
+    final Meter messagesReceived;
+    final Meter bytesSent;
+    final Meter bytesReceived;
+    final Histogram messagesSentSize;
+    final Histogram messagesReceivedSize;
+
+    final Meter failures;
+    private final ConcurrentMap<Integer, Counter> closeCodes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, Counter> failureTypes = new ConcurrentHashMap<>();
+
+    /** The web sockets that are currently open, for the outbound backlog gauge. */
+    final Set<WebSocket> openWebSockets = ConcurrentHashMap.newKeySet();
+
+    Metrics(@Nonnull MetricFactory factory, @Nullable String name) {
+      this.factory = factory;
+      this.name = name;
+      this.clock = Clock.defaultClock();
+
+      this.open = factory.counter(MetricRegistry.name(name, "open"));
+      this.duration = factory.timer(MetricRegistry.name(name, "duration"));
+
+      this.messagesSent = factory.meter(MetricRegistry.name(name, "messages-sent"));
+      this.messagesReceived = factory.meter(MetricRegistry.name(name, "messages-received"));
+      this.bytesSent = factory.meter(MetricRegistry.name(name, "bytes-sent"));
+      this.bytesReceived = factory.meter(MetricRegistry.name(name, "bytes-received"));
+      this.messagesSentSize = factory.histogram(MetricRegistry.name(name, "messages-sent-size"));
+      this.messagesReceivedSize =
+          factory.histogram(MetricRegistry.name(name, "messages-received-size"));
+
+      this.failures = factory.meter(MetricRegistry.name(name, "failures"));
+
+      factory.registry.register(
+          MetricRegistry.name(name, "queue-size"),
+          new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+              // The bytes enqueued to be sent by every open web socket, but not sent yet.
+              long queueSize = 0L;
+              for (WebSocket webSocket : openWebSockets) {
+                queueSize += webSocket.queueSize();
+              }
+              return queueSize;
+            }
+          });
+    }
+
+    /**
+     * The number of web sockets closed with {@code code}, if RFC 6455 defines it, or with any other
+     * code otherwise, since the peer picks the code and could pick a different one every time.
+     */
+    Counter closeCode(int code) {
+      Integer key = isStandardCloseCode(code) ? code : OTHER_CLOSE_CODES;
+      Counter counter = this.closeCodes.get(key);
+      if (counter == null) {
+        counter =
+            this.closeCodes.computeIfAbsent(
+                key,
+                c ->
+                    this.factory.counter(
+                        MetricRegistry.name(
+                            this.name, "closes", c == OTHER_CLOSE_CODES ? "other" : c.toString())));
+      }
+      return counter;
+    }
+
+    /** Whether RFC 6455 defines {@code code}, in section 7.4.1. */
+    private static boolean isStandardCloseCode(int code) {
+      return (code >= 1000 && code <= 1011 && code != 1004) || code == 1015;
+    }
+
+    /** The number of web sockets that failed with an exception of the given type. */
+    Counter failureType(@Nonnull Class<?> type) {
+      Counter counter = this.failureTypes.get(type);
+      if (counter == null) {
+        counter =
+            this.failureTypes.computeIfAbsent(
+                type,
+                t ->
+                    this.factory.counter(
+                        MetricRegistry.name(this.name, "failures", t.getSimpleName())));
+      }
+      return counter;
+    }
+
+    void sent(long byteCount) {
+      this.messagesSent.mark();
+      this.bytesSent.mark(byteCount);
+      this.messagesSentSize.update(byteCount);
+    }
+  }
+
+  private final Metrics metrics;
+  private final InstrumentedWebSocket webSocket;
+
+  /** The user-provided {@link WebSocketListener listener}. */
+  private final WebSocketListener delegate;
+
+  /** The tick of the metrics' clock the web socket opened at. */
+  private volatile long openTick;
+
+  InstrumentedWebSocketListener(
+      @Nonnull Metrics metrics,
+      @Nonnull InstrumentedWebSocket webSocket,
+      @Nonnull WebSocketListener delegate) {
+    this.metrics = metrics;
+    this.webSocket = webSocket;
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void onOpen(@Nonnull WebSocket webSocket, @Nonnull Response response) {
+    // This may run before newWebSocket() returns and attaches the web socket itself.
+    this.webSocket.attach(webSocket);
+    this.openTick = this.metrics.clock.getTick();
+    this.metrics.open.inc();
+    this.metrics.openWebSockets.add(this.webSocket);
+    this.delegate.onOpen(this.webSocket, response);
+  }
+
+  @Override
+  public void onMessage(@Nonnull WebSocket webSocket, @Nonnull String text) {
+    received(Utf8.size(text));
+    this.delegate.onMessage(this.webSocket, text);
+  }
+
+  @Override
+  public void onMessage(@Nonnull WebSocket webSocket, @Nonnull ByteString bytes) {
+    received(bytes.size());
+    this.delegate.onMessage(this.webSocket, bytes);
+  }
+
+  @Override
+  public void onClosing(@Nonnull WebSocket webSocket, int code, @Nonnull String reason) {
+    this.delegate.onClosing(this.webSocket, code, reason);
+  }
+
+  @Override
+  public void onClosed(@Nonnull WebSocket webSocket, int code, @Nonnull String reason) {
+    closed();
+    this.metrics.closeCode(code).inc();
+    this.delegate.onClosed(this.webSocket, code, reason);
+  }
+
+  @Override
+  public void onFailure(
+      @Nonnull WebSocket webSocket, @Nonnull Throwable t, @Nullable Response response) {
+    this.webSocket.attach(webSocket);
+    closed();
+    this.metrics.failures.mark();
+    this.metrics.failureType(t.getClass()).inc();
+    this.delegate.onFailure(this.webSocket, t, response);
+  }
+
+  private void received(long byteCount) {
+    this.metrics.messagesReceived.mark();
+    this.metrics.bytesReceived.mark(byteCount);
+    this.metrics.messagesReceivedSize.update(byteCount);
+  }
+
+  /** Records the end of the web socket's lifetime, if it opened. */
+  private void closed() {
+    if (this.metrics.openWebSockets.remove(this.webSocket)) {
+      long elapsed = this.metrics.clock.getTick() - this.openTick;
+      this.metrics.duration.update(elapsed, TimeUnit.NANOSECONDS);
+      this.metrics.open.dec();
+    }
+  }
+}
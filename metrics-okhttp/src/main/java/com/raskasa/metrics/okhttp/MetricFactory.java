@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Timer;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Gets or creates the metrics of an instrumented client in its {@link MetricRegistry registry}.
+ *
+ * <p>Timers and histograms are backed by reservoirs from the configured supplier, or by the
+ * registry's default {@link ExponentiallyDecayingReservoir} if there is none.
+ */
+final class MetricFactory {
+  final MetricRegistry registry;
+  private final MetricRegistry.MetricSupplier<Timer> timers;
+  private final MetricRegistry.MetricSupplier<Histogram> histograms;
+
+  MetricFactory(@Nonnull MetricRegistry registry, @Nullable Supplier<Reservoir> reservoir) {
+    Supplier<Reservoir> reservoirs =
+        reservoir != null ? reservoir : ExponentiallyDecayingReservoir::new;
+    this.registry = registry;
+    this.timers = () -> new Timer(reservoirs.get());
+    this.histograms = () -> new Histogram(reservoirs.get());
+  }
+
+  Meter meter(@Nonnull String name) {
+    return registry.meter(name);
+  }
+
+  Counter counter(@Nonnull String name) {
+    return registry.counter(name);
+  }
+
+  Timer timer(@Nonnull String name) {
+    return registry.timer(name, timers);
+  }
+
+  Histogram histogram(@Nonnull String name) {
+    return registry.histogram(name, histograms);
+  }
+}
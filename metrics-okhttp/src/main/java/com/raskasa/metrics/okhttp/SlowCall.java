@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * The phase breakdown of a call that took longer than the threshold of a {@link SlowCallLog}.
+ *
+ * <p>Phase durations add up every time the phase happened during the call, e.g. the time spent
+ * connecting to each route that was tried, and are {@code 0} for phases the call skipped, e.g.
+ * connecting when it reused a pooled connection.
+ */
+public final class SlowCall {
+  private final String host;
+  private final int code;
+  @Nullable private final String failure;
+  private final long timestampMillis;
+  private final long durationNanos;
+  private final long dnsNanos;
+  private final long connectNanos;
+  private final long tlsNanos;
+  private final long requestWriteNanos;
+  private final long timeToFirstByteNanos;
+  private final long responseBodyNanos;
+
+  SlowCall(
+      String host,
+      int code,
+      @Nullable String failure,
+      long timestampMillis,
+      long durationNanos,
+      long dnsNanos,
+      long connectNanos,
+      long tlsNanos,
+      long requestWriteNanos,
+      long timeToFirstByteNanos,
+      long responseBodyNanos) {
+    this.host = host;
+    this.code = code;
+    this.failure = failure;
+    this.timestampMillis = timestampMillis;
+    this.durationNanos = durationNanos;
+    this.dnsNanos = dnsNanos;
+    this.connectNanos = connectNanos;
+    this.tlsNanos = tlsNanos;
+    this.requestWriteNanos = requestWriteNanos;
+    this.timeToFirstByteNanos = timeToFirstByteNanos;
+    this.responseBodyNanos = responseBodyNanos;
+  }
+
+  /** The host of the call's URL. */
+  public String host() {
+    return host;
+  }
+
+  /** The status code of the call's last network response, or {@code 0} if it didn't get one. */
+  public int code() {
+    return code;
+  }
+
+  /** Whether the call failed rather than completed. */
+  public boolean failed() {
+    return failure != null;
+  }
+
+  /** The exception the call failed with, or {@code null} if it completed. */
+  @Nullable
+  public String failure() {
+    return failure;
+  }
+
+  /** The wall time the call ended at, in milliseconds since the epoch. */
+  public long timestampMillis() {
+    return timestampMillis;
+  }
+
+  public long duration(TimeUnit unit) {
+    return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public long dnsDuration(TimeUnit unit) {
+    return unit.convert(dnsNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** The time spent connecting, including the TLS handshake. */
+  public long connectDuration(TimeUnit unit) {
+    return unit.convert(connectNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public long tlsHandshakeDuration(TimeUnit unit) {
+    return unit.convert(tlsNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public long requestWriteDuration(TimeUnit unit) {
+    return unit.convert(requestWriteNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public long timeToFirstByte(TimeUnit unit) {
+    return unit.convert(timeToFirstByteNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public long responseBodyDuration(TimeUnit unit) {
+    return unit.convert(responseBodyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public String toString() {
+    return "SlowCall{host="
+        + host
+        + ", code="
+        + code
+        + (failure != null ? ", failure=" + failure : "")
+        + ", timestampMillis="
+        + timestampMillis
+        + ", durationMs="
+        + TimeUnit.NANOSECONDS.toMillis(durationNanos)
+        + ", dnsMs="
+        + TimeUnit.NANOSECONDS.toMillis(dnsNanos)
+        + ", connectMs="
+        + TimeUnit.NANOSECONDS.toMillis(connectNanos)
+        + ", tlsMs="
+        + TimeUnit.NANOSECONDS.toMillis(tlsNanos)
+        + ", requestWriteMs="
+        + TimeUnit.NANOSECONDS.toMillis(requestWriteNanos)
+        + ", timeToFirstByteMs="
+        + TimeUnit.NANOSECONDS.toMillis(timeToFirstByteNanos)
+        + ", responseBodyMs="
+        + TimeUnit.NANOSECONDS.toMillis(responseBodyNanos)
+        + "}";
+  }
+}
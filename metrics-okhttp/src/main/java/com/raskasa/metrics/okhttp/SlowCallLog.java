@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the phase breakdown of the most recent calls that took at least a threshold to complete or
+ * fail, to investigate latency outliers without verbose logging.
+ *
+ * <p>Calls are kept in a fixed-size ring buffer: recording one takes a single atomic increment and
+ * array write, and once the buffer is full each new slow call replaces the oldest one. Only calls
+ * whose detailed metrics are recorded are considered, see {@link
+ * InstrumentedOkHttpClients.Builder#sampleCallDetails(int)}.
+ *
+ * @see InstrumentedOkHttpClients.Builder#slowCallLog(SlowCallLog)
+ */
+public final class SlowCallLog {
+  private final long thresholdNanos;
+  private final AtomicReferenceArray<SlowCall> calls;
+
+  /** The number of slow calls recorded so far. The next one goes in slot {@code captured % n}. */
+  private final AtomicLong captured = new AtomicLong();
+
+  /**
+   * @param threshold calls that take at least this long are recorded.
+   * @param capacity the number of most recent slow calls to keep.
+   */
+  public SlowCallLog(long threshold, TimeUnit unit, int capacity) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("threshold < 0: " + threshold);
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity <= 0: " + capacity);
+    }
+    this.thresholdNanos = unit.toNanos(threshold);
+    this.calls = new AtomicReferenceArray<>(capacity);
+  }
+
+  /** Whether a call that took {@code durationNanos} is slow enough to be recorded. */
+  boolean isSlow(long durationNanos) {
+    return durationNanos >= thresholdNanos;
+  }
+
+  void add(SlowCall call) {
+    long index = captured.getAndIncrement();
+    calls.set((int) (index % calls.length()), call);
+  }
+
+  /** The number of slow calls recorded so far, including those no longer kept. */
+  public long capturedCount() {
+    return captured.get();
+  }
+
+  /**
+   * Returns the slow calls currently kept, most recent first.
+   *
+   * <p>Calls recorded while this runs may or may not be included, and may replace older ones that
+   * would otherwise have been.
+   */
+  public List<SlowCall> slowCalls() {
+    long end = captured.get();
+    long start = Math.max(0, end - calls.length());
+    List<SlowCall> result = new ArrayList<>((int) (end - start));
+    for (long i = end - 1; i >= start; i--) {
+      SlowCall call = calls.get((int) (i % calls.length()));
+      if (call != null) {
+        result.add(call);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Dns;
+import org.junit.Test;
+
+public final class CachingDnsTest {
+  private static final long TTL = TimeUnit.SECONDS.toNanos(60);
+
+  private final MetricRegistry registry = new MetricRegistry();
+  private final FakeClock clock = new FakeClock();
+  private final FakeDns delegate = new FakeDns();
+  private final CachingDns dns =
+      new CachingDns(
+          delegate, TTL, 2, Runnable::run, new MetricFactory(registry, null), "dns", clock);
+
+  @Test
+  public void lookupsAreCachedForTheTtl() throws Exception {
+    List<InetAddress> addresses = dns.lookup("a.example.com");
+    clock.tick = TTL / 2;
+    assertThat(dns.lookup("a.example.com")).isSameAs(addresses);
+    clock.tick = TTL;
+    assertThat(dns.lookup("a.example.com")).isNotSameAs(addresses);
+
+    assertThat(delegate.lookups).containsExactly("a.example.com", "a.example.com");
+    assertThat(registry.meter("dns.cache-hits").getCount()).isEqualTo(1);
+    assertThat(registry.meter("dns.cache-misses").getCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void hostnamesAboutToExpireAreRefreshedAhead() throws Exception {
+    List<InetAddress> addresses = dns.lookup("a.example.com");
+    clock.tick = TTL - 1;
+    // Served from the cache, and refreshed in the background.
+    assertThat(dns.lookup("a.example.com")).isSameAs(addresses);
+    List<InetAddress> refreshed = dns.lookup("a.example.com");
+    assertThat(refreshed).isNotSameAs(addresses);
+    clock.tick = TTL + 1;
+    assertThat(dns.lookup("a.example.com")).isSameAs(refreshed);
+
+    assertThat(delegate.lookups).hasSize(2);
+    assertThat(registry.meter("dns.cache-refreshes").getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void expiredAddressesAreServedWhenLookupsFail() throws Exception {
+    List<InetAddress> addresses = dns.lookup("a.example.com");
+    clock.tick = TTL;
+    delegate.failing = true;
+    assertThat(dns.lookup("a.example.com")).isSameAs(addresses);
+    assertThat(registry.meter("dns.cache-stale-served").getCount()).isEqualTo(1);
+
+    try {
+      dns.lookup("b.example.com");
+      fail();
+    } catch (UnknownHostException expected) {
+    }
+  }
+
+  @Test
+  public void expiredAddressesAreServedRightAwayDuringAnOutage() throws Exception {
+    List<Runnable> background = new ArrayList<>();
+    CachingDns dns =
+        new CachingDns(
+            delegate, TTL, 2, background::add, new MetricFactory(registry, null), "dns", clock);
+    List<InetAddress> addresses = dns.lookup("a.example.com");
+    clock.tick = TTL;
+    delegate.failing = true;
+
+    // The first lookup after the hostname expired waits for the resolver to fail...
+    assertThat(dns.lookup("a.example.com")).isSameAs(addresses);
+    assertThat(delegate.failures).isEqualTo(1);
+    // ... the next ones in the grace period don't, and resolve it in the background instead.
+    clock.tick += CachingDns.STALE_GRACE_NANOS - 1;
+    assertThat(dns.lookup("a.example.com")).isSameAs(addresses);
+    assertThat(delegate.failures).isEqualTo(1);
+    assertThat(background).hasSize(1);
+
+    delegate.failing = false;
+    background.remove(0).run();
+    assertThat(dns.lookup("a.example.com")).isNotSameAs(addresses);
+    assertThat(registry.meter("dns.cache-stale-served").getCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void expiredAddressesAreServedForAtMostAnotherTtl() throws Exception {
+    List<InetAddress> addresses = dns.lookup("a.example.com");
+    delegate.failing = true;
+
+    // Every failed lookup serves the expired addresses for another grace period...
+    for (clock.tick = TTL; clock.tick < 2 * TTL; clock.tick += CachingDns.STALE_GRACE_NANOS) {
+      assertThat(dns.lookup("a.example.com")).isSameAs(addresses);
+    }
+    // ... until they're a ttl past their expiry, when the hostname is failed instead.
+    clock.tick = 2 * TTL;
+    try {
+      dns.lookup("a.example.com");
+      fail();
+    } catch (UnknownHostException expected) {
+    }
+    // The hostname is forgotten, so it isn't served again either.
+    try {
+      dns.lookup("a.example.com");
+      fail();
+    } catch (UnknownHostException expected) {
+    }
+  }
+
+  @Test
+  public void leastRecentlyUsedHostnamesAreEvicted() throws Exception {
+    dns.lookup("a.example.com");
+    dns.lookup("b.example.com");
+    dns.lookup("a.example.com");
+    dns.lookup("c.example.com");
+    dns.lookup("a.example.com");
+    dns.lookup("b.example.com");
+
+    assertThat(delegate.lookups)
+        .containsExactly("a.example.com", "b.example.com", "c.example.com", "b.example.com");
+  }
+
+  private static final class FakeDns implements Dns {
+    final List<String> lookups = new ArrayList<>();
+    boolean failing;
+    int failures;
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+      if (failing) {
+        failures++;
+        throw new UnknownHostException(hostname);
+      }
+      lookups.add(hostname);
+      return Collections.singletonList(InetAddress.getByAddress(hostname, new byte[] {1, 2, 3, 4}));
+    }
+  }
+
+  private static final class FakeClock extends Clock {
+    long tick;
+
+    @Override
+    public long getTick() {
+      return tick;
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.raskasa.metrics.okhttp.CallTimeline.Event;
+import org.junit.Test;
+
+public final class CallTimelinePoolTest {
+  private final CallTimelinePool pool = new CallTimelinePool(1);
+
+  @Test
+  public void releasedTimelinesAreReusedCleared() {
+    CallTimeline timeline = pool.acquire();
+    timeline.record(Event.CALL_START, 1L);
+    timeline.code(200);
+    pool.release(timeline);
+
+    CallTimeline reused = pool.acquire();
+    assertThat(reused).isSameAs(timeline);
+    assertThat(reused.happened(Event.CALL_START)).isFalse();
+    assertThat(reused.code()).isEqualTo(0);
+  }
+
+  @Test
+  public void timelinesAreCreatedWhenThePoolIsEmpty() {
+    CallTimeline first = pool.acquire();
+    CallTimeline second = pool.acquire();
+    assertThat(second).isNotSameAs(first);
+
+    pool.release(first);
+    pool.release(second);
+    assertThat(pool.acquire()).isSameAs(first);
+    assertThat(pool.acquire()).isNotSameAs(second);
+  }
+}
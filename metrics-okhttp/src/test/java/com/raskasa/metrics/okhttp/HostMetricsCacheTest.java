@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public final class HostMetricsCacheTest {
+  private final MetricRegistry registry = new MetricRegistry();
+  private final FakeClock clock = new FakeClock();
+  private final HostMetricsCache<Meter> cache =
+      new HostMetricsCache<>(
+          registry,
+          "hosts",
+          2,
+          prefix -> registry.meter(MetricRegistry.name(prefix, "calls")),
+          clock);
+
+  @Test
+  public void sameHostSharesMetrics() {
+    assertThat(cache.get("a.example.com")).isSameAs(cache.get("a.example.com"));
+    assertThat(registry.getMeters()).containsKey("hosts.a.example.com.calls");
+  }
+
+  @Test
+  public void hostsBeyondCapacityAreRecordedAsOverflow() {
+    Meter a = cache.get("a.example.com");
+    Meter b = cache.get("b.example.com");
+    Meter c = cache.get("c.example.com");
+
+    assertThat(c).isSameAs(registry.meter("hosts.other.calls"));
+    assertThat(c).isNotSameAs(a).isNotSameAs(b);
+    assertThat(registry.getMeters()).doesNotContainKey("hosts.c.example.com.calls");
+  }
+
+  @Test
+  public void leastRecentlyUsedIdleHostIsEvicted() {
+    cache.get("a.example.com");
+    cache.get("a.example.com.cn");
+    clock.tick += HostMetricsCache.IDLE_TIMEOUT_NANOS;
+    cache.get("a.example.com.cn");
+
+    Meter c = cache.get("c.example.com");
+
+    assertThat(c).isSameAs(registry.meter("hosts.c.example.com.calls"));
+    assertThat(registry.getMeters())
+        .doesNotContainKey("hosts.a.example.com.calls")
+        .containsKey("hosts.a.example.com.cn.calls");
+  }
+
+  @Test
+  public void concurrentLookupsStayWithinCapacity() throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      String host = i + ".example.com";
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  throw new AssertionError(e);
+                }
+                for (int j = 0; j < 1000; j++) {
+                  cache.get(host);
+                  cache.get("shared.example.com");
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // Two hosts plus the overflow bundle.
+    assertThat(registry.getMeters()).hasSize(3).containsKey("hosts.other.calls");
+  }
+
+  private static final class FakeClock extends Clock {
+    long tick;
+
+    @Override
+    public long getTick() {
+      return tick;
+    }
+  }
+}
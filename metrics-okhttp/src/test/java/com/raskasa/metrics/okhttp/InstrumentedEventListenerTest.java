@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import okhttp3.Call;
+import okhttp3.CipherSuite;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.TlsVersion;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Drives the listener with events directly, for what a local server can't easily produce. */
+public final class InstrumentedEventListenerTest {
+  private final MetricRegistry registry = new MetricRegistry();
+  private final Call call = mock(Call.class);
+  private final InetSocketAddress address =
+      new InetSocketAddress(InetAddress.getLoopbackAddress(), 443);
+  private EventListener.Factory factory;
+
+  @Before
+  public void setUp() {
+    when(call.request()).thenReturn(new Request.Builder().url("https://example.com/").build());
+    factory =
+        new InstrumentedEventListener.Factory(
+            new MetricFactory(registry, null),
+            EventListener.NONE,
+            "listener",
+            0,
+            1,
+            new InstrumentationToggle(),
+            null,
+            null);
+  }
+
+  @Test
+  public void fullTlsHandshakeIsInstrumented() {
+    // A full handshake creates its session after the handshake started.
+    connect(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1));
+
+    assertThat(registry.getTimers().get("listener.tls-handshakes-duration").getCount())
+        .isEqualTo(1);
+    assertThat(registry.getCounters().get("listener.tls-versions.TLS_1_3").getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getCounters()
+                .get("listener.tls-cipher-suites.TLS_AES_128_GCM_SHA256")
+                .getCount())
+        .isEqualTo(1);
+    assertThat(registry.getMeters().get("listener.tls-handshakes-full").getCount()).isEqualTo(1);
+    assertThat(registry.getMeters().get("listener.tls-handshakes-resumed").getCount())
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void resumedTlsHandshakeIsInstrumented() {
+    // A resumed handshake reuses a session created before the handshake started.
+    connect(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1));
+
+    assertThat(registry.getTimers().get("listener.tls-handshakes-duration").getCount())
+        .isEqualTo(1);
+    assertThat(registry.getMeters().get("listener.tls-handshakes-resumed").getCount())
+        .isEqualTo(1);
+    assertThat(registry.getMeters().get("listener.tls-handshakes-full").getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void concurrentTlsHandshakesAreTimedSeparately() throws Exception {
+    long slowMillis = 100;
+    EventListener listener = factory.create(call);
+    listener.callStart(call);
+    CountDownLatch slowStarted = new CountDownLatch(1);
+    CountDownLatch fastEnded = new CountDownLatch(1);
+
+    // A slow handshake, during which a racing attempt runs a fast one on another thread.
+    Thread slow =
+        new Thread(
+            () -> {
+              listener.secureConnectStart(call);
+              slowStarted.countDown();
+              try {
+                fastEnded.await();
+              } catch (InterruptedException e) {
+                throw new AssertionError(e);
+              }
+              listener.secureConnectEnd(call, null);
+            });
+    slow.start();
+    slowStarted.await();
+    Thread.sleep(slowMillis);
+    Thread fast =
+        new Thread(
+            () -> {
+              listener.secureConnectStart(call);
+              listener.secureConnectEnd(call, null);
+              fastEnded.countDown();
+            });
+    fast.start();
+    fast.join();
+    slow.join();
+
+    Snapshot durations = registry.getTimers().get("listener.tls-handshakes-duration").getSnapshot();
+    assertThat(durations.size()).isEqualTo(2);
+    assertThat(durations.getMax())
+        .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(slowMillis));
+    assertThat(durations.getMin()).isLessThan(TimeUnit.MILLISECONDS.toNanos(slowMillis));
+  }
+
+  /** Runs a call over a new TLS connection whose session was created at {@code creationTime}. */
+  private void connect(long creationTime) {
+    SSLSession session = mock(SSLSession.class);
+    when(session.getCreationTime()).thenReturn(creationTime);
+    SSLSocket socket = mock(SSLSocket.class);
+    when(socket.getSession()).thenReturn(session);
+    Connection connection = mock(Connection.class);
+    when(connection.socket()).thenReturn(socket);
+    when(connection.protocol()).thenReturn(Protocol.HTTP_1_1);
+    Handshake handshake =
+        Handshake.get(
+            TlsVersion.TLS_1_3,
+            CipherSuite.TLS_AES_128_GCM_SHA256,
+            Collections.emptyList(),
+            Collections.emptyList());
+
+    EventListener listener = factory.create(call);
+    listener.callStart(call);
+    listener.connectStart(call, address, Proxy.NO_PROXY);
+    listener.secureConnectStart(call);
+    listener.secureConnectEnd(call, handshake);
+    listener.connectEnd(call, address, Proxy.NO_PROXY, Protocol.HTTP_1_1);
+    listener.connectionAcquired(call, connection);
+    listener.connectionReleased(call, connection);
+    listener.callEnd(call);
+  }
+}
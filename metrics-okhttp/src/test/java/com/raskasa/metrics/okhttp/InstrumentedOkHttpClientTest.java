@@ -18,26 +18,40 @@ package com.raskasa.metrics.okhttp;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
 
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.raskasa.metrics.okhttp.CallTimeline.Event;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.Cache;
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.ConnectionPool;
 import okhttp3.Dispatcher;
+import okhttp3.Dns;
 import okhttp3.EventListener;
 import okhttp3.HttpUrl;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.RecordingEventListener;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
@@ -256,6 +270,352 @@ public final class InstrumentedOkHttpClientTest {
     response.body().close();
   }
 
+  @Test
+  public void httpCacheGaugesShareSnapshot() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    Cache cache = new Cache(cacheRule.getRoot(), Long.MAX_VALUE);
+    rawClient = rawClient.newBuilder().cache(cache).build();
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .cacheStatsRefreshInterval(1, TimeUnit.HOURS)
+            .build();
+
+    assertThat(
+            registry
+                .getGauges()
+                .get(InstrumentedOkHttpClient.metricId(null, "cache-request-count"))
+                .getValue())
+        .isEqualTo(0);
+
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().close();
+
+    // Served from the snapshot taken by the first read until the refresh interval elapses.
+    assertThat(cache.requestCount()).isEqualTo(1);
+    assertThat(
+            registry
+                .getGauges()
+                .get(InstrumentedOkHttpClient.metricId(null, "cache-request-count"))
+                .getValue())
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void cacheOutcomesAreInstrumented() throws Exception {
+    server.enqueue(
+        new MockResponse()
+            .addHeader("Cache-Control:public, max-age=31536000")
+            .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
+            .addHeader("Expires: " + formatDate(1, TimeUnit.HOURS))
+            .setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    Cache cache = new Cache(cacheRule.getRoot(), Long.MAX_VALUE);
+    rawClient = rawClient.newBuilder().cache(cache).build();
+    OkHttpClient client = InstrumentedOkHttpClient.build(registry, rawClient, null);
+
+    Request request = new Request.Builder().url(baseUrl).build();
+    for (int i = 0; i < 2; i++) {
+      try (Response response = client.newCall(request).execute()) {
+        assertThat(response.body().string()).isEqualTo("one");
+      }
+    }
+
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "cache-misses"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "cache-hits"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "calls-duration-cache-miss"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "calls-duration-cache-hit"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "calls-duration"))
+                .getCount())
+        .isEqualTo(2);
+  }
+
+  @Test
+  public void revalidatedCallsAreTimedAsConditionalHits() throws Exception {
+    server.enqueue(
+        new MockResponse()
+            .addHeader("Cache-Control: no-cache")
+            .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
+            .setBody("one"));
+    server.enqueue(new MockResponse().setResponseCode(304));
+    server.enqueue(
+        new MockResponse()
+            .addHeader("Cache-Control: no-cache")
+            .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.MINUTES))
+            .setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    Cache cache = new Cache(cacheRule.getRoot(), Long.MAX_VALUE);
+    rawClient = rawClient.newBuilder().cache(cache).build();
+    OkHttpClient client = InstrumentedOkHttpClient.build(registry, rawClient, null);
+
+    Request request = new Request.Builder().url(baseUrl).build();
+    for (String body : new String[] {"one", "one", "two"}) {
+      try (Response response = client.newCall(request).execute()) {
+        assertThat(response.body().string()).isEqualTo(body);
+      }
+    }
+
+    // The meters follow OkHttp's events: both validations are conditional hits, the 304 is a hit
+    // too, and the new response is a miss like the first.
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "cache-conditional-hits"))
+                .getCount())
+        .isEqualTo(2);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "cache-hits"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "cache-misses"))
+                .getCount())
+        .isEqualTo(2);
+    // The timers record each call once, by its outcome.
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "calls-duration-cache-miss"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(
+                    MetricRegistry.name(
+                        EventListener.class, "calls-duration-cache-conditional-hit"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(
+                    MetricRegistry.name(
+                        EventListener.class, "calls-duration-cache-conditional-miss"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "calls-duration-cache-hit"))
+                .getCount())
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void statusCodesAreInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setResponseCode(429));
+    server.enqueue(new MockResponse().setResponseCode(503));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .statusCodeMetrics(429)
+            .build();
+    Request request = new Request.Builder().url(baseUrl).build();
+    for (int i = 0; i < 3; i++) {
+      client.newCall(request).execute().close();
+    }
+
+    assertThat(
+            registry
+                .getMeters()
+                .get(InstrumentedOkHttpClient.metricId(null, "network-requests-2xx"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(InstrumentedOkHttpClient.metricId(null, "network-requests-4xx"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(InstrumentedOkHttpClient.metricId(null, "network-requests-5xx"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(InstrumentedOkHttpClient.metricId(null, "network-requests-429"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(registry.getMeters())
+        .doesNotContainKey(InstrumentedOkHttpClient.metricId(null, "network-requests-503"));
+    assertThat(
+            registry
+                .getTimers()
+                .get(InstrumentedOkHttpClient.metricId(null, "network-requests-success-duration"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(InstrumentedOkHttpClient.metricId(null, "network-requests-error-duration"))
+                .getCount())
+        .isEqualTo(2);
+  }
+
+  @Test
+  public void responseBodyReadsAreInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    server.enqueue(new MockResponse().setBody("three"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .instrumentResponseBodies(true)
+            .build();
+    Request request = new Request.Builder().url(baseUrl).build();
+    try (Response response = client.newCall(request).execute()) {
+      assertThat(response.body().string()).isEqualTo("one");
+    }
+    // Closed without being read: not recorded at all.
+    client.newCall(request).execute().close();
+    // Partly read, then closed: the consumer stalled until it closed the body.
+    long stallMillis = 100;
+    try (Response response = client.newCall(request).execute()) {
+      assertThat(response.body().source().readByte()).isEqualTo((byte) 't');
+      Thread.sleep(stallMillis);
+    }
+
+    assertThat(
+            registry
+                .getTimers()
+                .get(InstrumentedOkHttpClient.metricId(null, "network-response-body-read-duration"))
+                .getCount())
+        .isEqualTo(2);
+    Timer stallDuration =
+        registry
+            .getTimers()
+            .get(InstrumentedOkHttpClient.metricId(null, "network-response-body-stall-duration"));
+    assertThat(stallDuration.getCount()).isEqualTo(2);
+    assertThat(stallDuration.getSnapshot().getMax())
+        .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(stallMillis));
+    assertThat(
+            registry
+                .getTimers()
+                .get(
+                    InstrumentedOkHttpClient.metricId(
+                        null, "network-response-body-last-byte-duration"))
+                .getCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void requestBodyWritesAreInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .instrumentRequestBodies(true)
+            .build();
+    Request request =
+        new Request.Builder()
+            .url(baseUrl)
+            .post(RequestBody.create("hello", MediaType.get("text/plain")))
+            .build();
+    try (Response response = client.newCall(request).execute()) {
+      assertThat(response.body().string()).isEqualTo("one");
+    }
+
+    assertThat(server.takeRequest().getBody().readUtf8()).isEqualTo("hello");
+    Timer writeDuration =
+        registry
+            .getTimers()
+            .get(InstrumentedOkHttpClient.metricId(null, "network-request-body-write-duration"));
+    assertThat(writeDuration.getCount()).isEqualTo(1);
+    // The body is smaller than a segment, so it's only written to the socket when flushed.
+    long writeNanos = writeDuration.getSnapshot().getMax();
+    assertThat(writeNanos).isGreaterThan(0L);
+    Histogram uploadRate =
+        registry
+            .getHistograms()
+            .get(InstrumentedOkHttpClient.metricId(null, "network-request-body-upload-rate"));
+    assertThat(uploadRate.getCount()).isEqualTo(1);
+    // Five bytes, in no less time than was spent writing them to the socket.
+    assertThat(uploadRate.getSnapshot().getMax())
+        .isLessThanOrEqualTo(5L * TimeUnit.SECONDS.toNanos(1) / writeNanos);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "request-body-duration"))
+                .getCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void dnsIsInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    // Without pooled connections every call connects, and looks up the server.
+    rawClient =
+        rawClient.newBuilder().connectionPool(new ConnectionPool(0, 1, TimeUnit.SECONDS)).build();
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .instrumentDns(true)
+            .dnsCache(1, TimeUnit.HOURS, 10)
+            .build();
+    Request request = new Request.Builder().url(baseUrl).build();
+    for (int i = 0; i < 2; i++) {
+      try (Response response = client.newCall(request).execute()) {
+        response.body().string();
+      }
+    }
+
+    // The second call connected again, but its lookup was served from the cache.
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(Dns.class, "lookups-duration"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(registry.getMeters().get(MetricRegistry.name(Dns.class, "cache-misses")).getCount())
+        .isEqualTo(1);
+    assertThat(registry.getMeters().get(MetricRegistry.name(Dns.class, "cache-hits")).getCount())
+        .isEqualTo(1);
+  }
+
   @Test
   public void connectionPoolIsInstrumented() throws Exception {
     server.enqueue(new MockResponse().setBody("one"));
@@ -299,6 +659,64 @@ public final class InstrumentedOkHttpClientTest {
     resp2.body().close();
   }
 
+  @Test
+  public void dispatcherIsInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    // A slow application interceptor, like one fetching an auth token, runs after the queue wait.
+    long interceptorMillis = 500;
+    OkHttpClient slowClient =
+        rawClient
+            .newBuilder()
+            .addInterceptor(
+                chain -> {
+                  try {
+                    Thread.sleep(interceptorMillis);
+                  } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                  }
+                  return chain.proceed(chain.request());
+                })
+            .build();
+    OkHttpClient client = InstrumentedOkHttpClient.build(registry, slowClient, null);
+
+    assertThat(
+            registry
+                .getGauges()
+                .get(InstrumentedOkHttpClient.metricId(null, "dispatcher-queued-count"))
+                .getValue())
+        .isEqualTo(0);
+    assertThat(
+            registry
+                .getGauges()
+                .get(InstrumentedOkHttpClient.metricId(null, "dispatcher-running-count"))
+                .getValue())
+        .isEqualTo(0);
+
+    final CountDownLatch done = new CountDownLatch(1);
+    client
+        .newCall(new Request.Builder().url(baseUrl).build())
+        .enqueue(
+            new TestCallback() {
+              @Override
+              public void onResponse(Call call, Response response) throws IOException {
+                super.onResponse(call, response);
+                done.countDown();
+              }
+            });
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+
+    // The queue wait is recorded once the call starts executing on a dispatcher thread.
+    Timer queueDuration =
+        registry
+            .getTimers()
+            .get(MetricRegistry.name(EventListener.class, "dispatcher-queue-duration"));
+    assertThat(queueDuration.getCount()).isEqualTo(1);
+    assertThat(queueDuration.getSnapshot().getMax())
+        .isLessThan(TimeUnit.MILLISECONDS.toNanos(interceptorMillis));
+  }
+
   @Test
   public void eventListenerIsInstrumented() throws Exception {
     server.enqueue(new MockResponse().setBody("one"));
@@ -307,32 +725,28 @@ public final class InstrumentedOkHttpClientTest {
 
     OkHttpClient client = InstrumentedOkHttpClient.build(registry, rawClient, null);
 
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "calls-start"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "calls-end"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "calls-failed"));
-    assertThat(registry.getTimers().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "calls-duration"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "dns-start"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "dns-end"));
-    assertThat(registry.getTimers().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "dns-duration"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-start"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-end"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-failed"));
-    assertThat(registry.getTimers().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-duration"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-acquired"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-released"));
+    // The metrics are resolved once, when the client is instrumented, rather than per call.
+    for (String meter :
+        Arrays.asList(
+            "calls-start",
+            "calls-end",
+            "calls-failed",
+            "dns-start",
+            "dns-end",
+            "connections-start",
+            "connections-end",
+            "connections-failed",
+            "connections-acquired",
+            "connections-released")) {
+      assertThat(
+              registry.getMeters().get(MetricRegistry.name(EventListener.class, meter)).getCount())
+          .isEqualTo(0);
+    }
+    for (String timer : Arrays.asList("calls-duration", "dns-duration", "connections-duration")) {
+      assertThat(
+              registry.getTimers().get(MetricRegistry.name(EventListener.class, timer)).getCount())
+          .isEqualTo(0);
+    }
 
     Request req1 = new Request.Builder().url(baseUrl).build();
     Request req2 = new Request.Builder().url(baseUrl).build();
@@ -455,20 +869,422 @@ public final class InstrumentedOkHttpClientTest {
   }
 
   @Test
-  public void eventListenerDelegatesSuccessfully() throws Exception {
+  public void bodySizesAreInstrumented() throws Exception {
     server.enqueue(new MockResponse().setBody("one"));
-    server.enqueue(new MockResponse().setBody("two"));
     HttpUrl baseUrl = server.url("/");
 
-    RecordingEventListener delegate = new RecordingEventListener();
-    OkHttpClient configureClient = rawClient.newBuilder().eventListener(delegate).build();
+    OkHttpClient client = InstrumentedOkHttpClient.build(registry, rawClient, null);
+    Request request =
+        new Request.Builder()
+            .url(baseUrl)
+            .post(RequestBody.create("hello", MediaType.get("text/plain")))
+            .build();
+    try (Response response = client.newCall(request).execute()) {
+      assertThat(response.body().string()).isEqualTo("one");
+    }
 
-    OkHttpClient client = InstrumentedOkHttpClient.build(registry, configureClient, null);
-    Request request = new Request.Builder().url(baseUrl).build();
-    Response response = client.newCall(request).execute();
-    response.close();
+    assertThat(
+            registry
+                .getHistograms()
+                .get(MetricRegistry.name(EventListener.class, "request-body-size"))
+                .getSnapshot()
+                .getMax())
+        .isEqualTo(5);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "request-body-bytes"))
+                .getCount())
+        .isEqualTo(5);
+    assertThat(
+            registry
+                .getHistograms()
+                .get(MetricRegistry.name(EventListener.class, "response-body-size"))
+                .getSnapshot()
+                .getMax())
+        .isEqualTo(3);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "response-body-bytes"))
+                .getCount())
+        .isEqualTo(3);
+  }
 
-    List<String> expectedEvents =
+  @Test
+  public void requestAndResponsePhasesAreInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client = InstrumentedOkHttpClient.build(registry, rawClient, null);
+    Request request = new Request.Builder().url(baseUrl).build();
+    client.newCall(request).execute().close();
+
+    for (String timer :
+        Arrays.asList(
+            "request-write-duration",
+            "time-to-first-byte-duration",
+            "response-headers-read-duration")) {
+      assertThat(
+              registry.getTimers().get(MetricRegistry.name(EventListener.class, timer)).getCount())
+          .isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void connectionReuseIsInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client = InstrumentedOkHttpClient.build(registry, rawClient, null);
+    try (Response response = client.newCall(new Request.Builder().url(baseUrl).build()).execute()) {
+      response.body().string();
+    }
+    try (Response response = client.newCall(new Request.Builder().url(baseUrl).build()).execute()) {
+      response.body().string();
+    }
+
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "connections-acquired-new"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "connections-acquired-pooled"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(registry.getGauges())
+        .containsKey(MetricRegistry.name(EventListener.class, "connections-reuse-ratio"));
+  }
+
+  @Test
+  public void connectionHoldingIsInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client = InstrumentedOkHttpClient.build(registry, rawClient, null);
+    try (Response response = client.newCall(new Request.Builder().url(baseUrl).build()).execute()) {
+      // The connection is held until the response body is consumed.
+      assertThat(
+              registry
+                  .getCounters()
+                  .get(MetricRegistry.name(EventListener.class, "connections-held"))
+                  .getCount())
+          .isEqualTo(1);
+      response.body().string();
+    }
+
+    assertThat(
+            registry
+                .getCounters()
+                .get(MetricRegistry.name(EventListener.class, "connections-held"))
+                .getCount())
+        .isEqualTo(0);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "connections-hold-duration"))
+                .getCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void unsampledCallsHoldConnections() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    // Practically no call is sampled.
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .sampleCallDetails(Integer.MAX_VALUE)
+            .build();
+    try (Response response = client.newCall(new Request.Builder().url(baseUrl).build()).execute()) {
+      assertThat(
+              registry
+                  .getCounters()
+                  .get(MetricRegistry.name(EventListener.class, "connections-held"))
+                  .getCount())
+          .isEqualTo(1);
+      response.body().string();
+    }
+
+    assertThat(
+            registry
+                .getCounters()
+                .get(MetricRegistry.name(EventListener.class, "connections-held"))
+                .getCount())
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void protocolsAreInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client = InstrumentedOkHttpClient.build(registry, rawClient, null);
+    Request request = new Request.Builder().url(baseUrl).build();
+    for (int i = 0; i < 2; i++) {
+      try (Response response = client.newCall(request).execute()) {
+        response.body().string();
+      }
+    }
+
+    assertThat(
+            registry
+                .getCounters()
+                .get(MetricRegistry.name(EventListener.class, "connections-protocols", "http/1.1"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getCounters()
+                .get(MetricRegistry.name(EventListener.class, "calls-protocols", "http/1.1"))
+                .getCount())
+        .isEqualTo(2);
+  }
+
+  @Test
+  public void multiplexingIsInstrumented() throws Exception {
+    List<Protocol> protocols = Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE);
+    server.setProtocols(protocols);
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    rawClient = rawClient.newBuilder().protocols(protocols).build();
+    OkHttpClient client = InstrumentedOkHttpClient.build(registry, rawClient, null);
+    Request request = new Request.Builder().url(baseUrl).build();
+    try (Response first = client.newCall(request).execute();
+        Response second = client.newCall(request).execute()) {
+      assertThat(
+              registry
+                  .getGauges()
+                  .get(MetricRegistry.name(EventListener.class, "connections-multiplexed-calls"))
+                  .getValue())
+          .isEqualTo(2.0);
+    }
+
+    assertThat(
+            registry
+                .getGauges()
+                .get(MetricRegistry.name(EventListener.class, "connections-multiplexed-calls"))
+                .getValue())
+        .isEqualTo(0.0);
+    assertThat(
+            registry
+                .getCounters()
+                .get(
+                    MetricRegistry.name(
+                        EventListener.class, "connections-protocols", "h2_prior_knowledge"))
+                .getCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void unsampledCallsAreMultiplexed() throws Exception {
+    List<Protocol> protocols = Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE);
+    server.setProtocols(protocols);
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    // Practically no call is sampled.
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient.newBuilder().protocols(protocols).build())
+            .sampleCallDetails(Integer.MAX_VALUE)
+            .build();
+    Request request = new Request.Builder().url(baseUrl).build();
+    try (Response first = client.newCall(request).execute();
+        Response second = client.newCall(request).execute()) {
+      assertThat(
+              registry
+                  .getGauges()
+                  .get(MetricRegistry.name(EventListener.class, "connections-multiplexed-calls"))
+                  .getValue())
+          .isEqualTo(2.0);
+    }
+
+    assertThat(
+            registry
+                .getGauges()
+                .get(MetricRegistry.name(EventListener.class, "connections-multiplexed-calls"))
+                .getValue())
+        .isEqualTo(0.0);
+  }
+
+  @Test
+  public void followUpsAreInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(302).addHeader("Location: /b"));
+    server.enqueue(new MockResponse().setBody("b"));
+    HttpUrl baseUrl = server.url("/a");
+
+    OkHttpClient client = InstrumentedOkHttpClient.build(registry, rawClient, null);
+    try (Response response = client.newCall(new Request.Builder().url(baseUrl).build()).execute()) {
+      assertThat(response.body().string()).isEqualTo("b");
+    }
+
+    assertThat(
+            registry
+                .getHistograms()
+                .get(MetricRegistry.name(EventListener.class, "calls-network-round-trips"))
+                .getSnapshot()
+                .getMax())
+        .isEqualTo(2);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "follow-ups-redirect"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "follow-ups-retry"))
+                .getCount())
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void slowCallsAreCaptured() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setResponseCode(503));
+    HttpUrl baseUrl = server.url("/");
+
+    SlowCallLog slowCallLog = new SlowCallLog(0, TimeUnit.MILLISECONDS, 1);
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .slowCallLog(slowCallLog)
+            .build();
+    Request request = new Request.Builder().url(baseUrl).build();
+    for (int i = 0; i < 2; i++) {
+      try (Response response = client.newCall(request).execute()) {
+        response.body().string();
+      }
+    }
+
+    assertThat(slowCallLog.capturedCount()).isEqualTo(2);
+    assertThat(
+            registry
+                .getGauges()
+                .get(MetricRegistry.name(EventListener.class, "slow-calls-captured"))
+                .getValue())
+        .isEqualTo(2L);
+    List<SlowCall> slowCalls = slowCallLog.slowCalls();
+    assertThat(slowCalls).hasSize(1);
+    SlowCall slowCall = slowCalls.get(0);
+    assertThat(slowCall.host()).isEqualTo(baseUrl.host());
+    assertThat(slowCall.code()).isEqualTo(503);
+    assertThat(slowCall.failed()).isFalse();
+    assertThat(slowCall.duration(TimeUnit.NANOSECONDS))
+        .isGreaterThanOrEqualTo(slowCall.timeToFirstByte(TimeUnit.NANOSECONDS));
+    // The second call reused the first one's connection.
+    assertThat(slowCall.connectDuration(TimeUnit.NANOSECONDS)).isEqualTo(0);
+  }
+
+  @Test
+  public void callTimelinesAreHandedToTheSink() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    List<String> timelines = new ArrayList<>();
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .callTimelineSink(
+                (call, timeline) -> {
+                  assertThat(timeline.elapsedNanos(Event.CALL_START, Event.CALL_END))
+                      .isGreaterThanOrEqualTo(
+                          timeline.elapsedNanos(Event.CONNECT_START, Event.CONNECT_END));
+                  assertThat(timeline.happened(Event.CACHE_HIT)).isFalse();
+                  timelines.add(
+                      call.request().url().encodedPath()
+                          + " "
+                          + timeline.protocol()
+                          + " "
+                          + timeline.code()
+                          + " "
+                          + timeline.responseBodyBytes()
+                          + " "
+                          + timeline.failed());
+                })
+            .build();
+    try (Response response = client.newCall(new Request.Builder().url(baseUrl).build()).execute()) {
+      assertThat(response.body().string()).isEqualTo("one");
+    }
+
+    assertThat(timelines).containsExactly("/ http/1.1 200 3 false");
+  }
+
+  @Test
+  public void connectAttemptsAreInstrumented() throws Exception {
+    MockWebServer ipv4Server = new MockWebServer();
+    ipv4Server.enqueue(new MockResponse().setBody("one"));
+    ipv4Server.start(InetAddress.getByName("127.0.0.1"), 0);
+    try {
+      // Nothing listens on the first address, so the call falls back to the second one.
+      List<InetAddress> addresses =
+          Arrays.asList(InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1"));
+      rawClient = rawClient.newBuilder().dns(hostname -> addresses).build();
+      HttpUrl url = ipv4Server.url("/").newBuilder().host("connect.example.com").build();
+
+      OkHttpClient client = InstrumentedOkHttpClient.build(registry, rawClient, null);
+      try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+        assertThat(response.body().string()).isEqualTo("one");
+      }
+    } finally {
+      ipv4Server.shutdown();
+    }
+
+    assertThat(
+            registry
+                .getHistograms()
+                .get(MetricRegistry.name(EventListener.class, "calls-connect-attempts"))
+                .getSnapshot()
+                .getMax())
+        .isEqualTo(2);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "connections-duration-ipv4"))
+                .getCount())
+        .isEqualTo(2);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "connections-duration-ipv6"))
+                .getCount())
+        .isEqualTo(0);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "connections-failed"))
+                .getCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void eventListenerDelegatesSuccessfully() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    RecordingEventListener delegate = new RecordingEventListener();
+    OkHttpClient configureClient = rawClient.newBuilder().eventListener(delegate).build();
+
+    OkHttpClient client = InstrumentedOkHttpClient.build(registry, configureClient, null);
+    Request request = new Request.Builder().url(baseUrl).build();
+    Response response = client.newCall(request).execute();
+    response.close();
+
+    List<String> expectedEvents =
         Arrays.asList(
             "CallStart",
             "DnsStart",
@@ -487,6 +1303,124 @@ public final class InstrumentedOkHttpClientTest {
     Assertions.assertThat(delegate.recordedEventTypes()).isEqualTo(expectedEvents);
   }
 
+  @Test
+  public void unsampledCallsAreOnlyCounted() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    RecordingEventListener delegate = new RecordingEventListener();
+    OkHttpClient configureClient = rawClient.newBuilder().eventListener(delegate).build();
+
+    // Practically no call is sampled.
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(configureClient)
+            .sampleCallDetails(Integer.MAX_VALUE)
+            .build();
+    Request request = new Request.Builder().url(baseUrl).build();
+    client.newCall(request).execute().close();
+
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "calls-start"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "calls-end"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "dns-start"))
+                .getCount())
+        .isEqualTo(0);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "calls-duration"))
+                .getCount())
+        .isEqualTo(0);
+    // The user-provided listener still receives every event.
+    assertThat(delegate.recordedEventTypes()).contains("DnsStart", "ConnectEnd", "CallEnd");
+  }
+
+  @Test
+  public void providedReservoirBacksTimersAndHistograms() {
+    final AtomicInteger reservoirs = new AtomicInteger();
+    InstrumentedOkHttpClients.builder(registry)
+        .client(rawClient)
+        .reservoir(
+            () -> {
+              reservoirs.incrementAndGet();
+              return new SlidingWindowReservoir(16);
+            })
+        .build();
+
+    assertThat(reservoirs.get())
+        .isEqualTo(registry.getTimers().size() + registry.getHistograms().size());
+  }
+
+  @Test
+  public void disabledGroupsAreNotInstrumented() {
+    InstrumentedOkHttpClients.builder(registry)
+        .client(rawClient)
+        .instrumentEventListener(false)
+        .instrumentConnectionPool(false)
+        .build();
+
+    assertThat(registry.getMeters())
+        .containsKey(InstrumentedOkHttpClient.metricId(null, "network-requests-submitted"))
+        .doesNotContainKey(MetricRegistry.name(EventListener.class, "calls-start"));
+    assertThat(registry.getGauges())
+        .containsKey(InstrumentedOkHttpClient.metricId(null, "dispatcher-queued-count"))
+        .doesNotContainKey(InstrumentedOkHttpClient.metricId(null, "connection-pool-total-count"));
+  }
+
+  @Test
+  public void toggleTurnsInstrumentationOffAndOn() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    InstrumentationToggle toggle = new InstrumentationToggle();
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry).client(rawClient).toggle(toggle).build();
+
+    toggle.disable();
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().close();
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "calls-start"))
+                .getCount())
+        .isEqualTo(0);
+    assertThat(
+            registry
+                .getMeters()
+                .get(InstrumentedOkHttpClient.metricId(null, "network-requests-submitted"))
+                .getCount())
+        .isEqualTo(0);
+
+    toggle.enable();
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().close();
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "calls-start"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(InstrumentedOkHttpClient.metricId(null, "network-requests-submitted"))
+                .getCount())
+        .isEqualTo(1);
+  }
+
   @Test
   public void executorServiceIsInstrumented() throws Exception {
     server.enqueue(new MockResponse().setBody("one"));
@@ -546,6 +1480,39 @@ public final class InstrumentedOkHttpClientTest {
     assertThat(registry.getMeters().get(generatedId)).isNotNull();
   }
 
+  @Test
+  public void hostMetricsAreRecorded() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry).client(rawClient).hostMetrics(10).build();
+    Request request = new Request.Builder().url(baseUrl).build();
+    client.newCall(request).execute().close();
+
+    String host = baseUrl.host();
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "hosts", host, "calls-duration"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(
+                    MetricRegistry.name(
+                        OkHttpClient.class, "hosts", host, "network-requests-duration"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "hosts", "other", "calls-duration"))
+                .getCount())
+        .isEqualTo(0);
+  }
+
   /**
    * @param delta the offset from the current date to use. Negative values yield dates in the past;
    *     positive values yield dates in the future.
@@ -560,7 +1527,7 @@ public final class InstrumentedOkHttpClientTest {
     return rfc1123.format(date);
   }
 
-  private static final class TestCallback implements Callback {
+  private static class TestCallback implements Callback {
     @Override
     public void onFailure(Call call, IOException e) {}
 
@@ -72,7 +72,8 @@ public final class InstrumentedOkHttpClientsTest {
     assertThat(clientA.followRedirects()).isEqualTo(clientB.followRedirects());
     assertThat(clientA.followSslRedirects()).isEqualTo(clientB.followSslRedirects());
     assertThat(clientA.hostnameVerifier()).isEqualTo(clientB.hostnameVerifier());
-    assertThat(clientA.interceptors().size()).isEqualTo(clientB.interceptors().size());
+    // The instrumentation adds an interceptor that marks when calls start executing.
+    assertThat(clientA.interceptors().size()).isEqualTo(clientB.interceptors().size() + 1);
     assertThat(clientA.pingIntervalMillis()).isEqualTo(clientB.pingIntervalMillis());
     assertThat(clientA.protocols()).isEqualTo(clientB.protocols());
     assertThat(clientA.proxy()).isEqualTo(clientB.proxy());
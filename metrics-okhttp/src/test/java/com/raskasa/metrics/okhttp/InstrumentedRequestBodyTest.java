@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.MetricRegistry;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import org.junit.Test;
+
+public final class InstrumentedRequestBodyTest {
+  private final MetricRegistry registry = new MetricRegistry();
+  private final InstrumentedRequestBody.Metrics metrics =
+      new InstrumentedRequestBody.Metrics(new MetricFactory(registry, null), "client");
+
+  @Test
+  public void writeToTheNetworkIsTimed() throws IOException {
+    long writeMillis = 50;
+    Buffer network = new Buffer();
+    // Like OkHttp's, the sink passed to the body buffers what is written until it's flushed.
+    BufferedSink sink =
+        Okio.buffer(
+            new ForwardingSink(network) {
+              @Override
+              public void write(Buffer source, long byteCount) throws IOException {
+                try {
+                  Thread.sleep(writeMillis);
+                } catch (InterruptedException e) {
+                  throw new AssertionError(e);
+                }
+                super.write(source, byteCount);
+              }
+            });
+    RequestBody body =
+        new InstrumentedRequestBody(
+            RequestBody.create("hello", MediaType.get("text/plain")), metrics);
+
+    body.writeTo(sink);
+
+    assertThat(network.readUtf8()).isEqualTo("hello");
+    assertThat(
+            registry
+                .getTimers()
+                .get("client.network-request-body-write-duration")
+                .getSnapshot()
+                .getMax())
+        .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(writeMillis));
+    assertThat(registry.getMeters().get("client.network-request-body-write-stalls").getCount())
+        .isEqualTo(1);
+    // Five bytes in at least 50 milliseconds.
+    assertThat(
+            registry
+                .getHistograms()
+                .get("client.network-request-body-upload-rate")
+                .getSnapshot()
+                .getMax())
+        .isLessThanOrEqualTo(100L);
+  }
+}
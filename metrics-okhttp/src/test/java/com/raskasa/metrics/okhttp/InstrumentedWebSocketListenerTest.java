@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Rule;
+import org.junit.Test;
+
+public final class InstrumentedWebSocketListenerTest {
+  @Rule public MockWebServer server = new MockWebServer();
+
+  private final MetricRegistry registry = new MetricRegistry();
+
+  @Test
+  public void webSocketsAreInstrumented() throws Exception {
+    server.enqueue(
+        new MockResponse()
+            .withWebSocketUpgrade(
+                new WebSocketListener() {
+                  @Override
+                  public void onMessage(WebSocket webSocket, String text) {
+                    webSocket.send(text + text);
+                  }
+
+                  @Override
+                  public void onClosing(WebSocket webSocket, int code, String reason) {
+                    webSocket.close(code, reason);
+                  }
+                }));
+
+    CountDownLatch received = new CountDownLatch(1);
+    CountDownLatch closed = new CountDownLatch(1);
+    WebSocket.Factory factory =
+        InstrumentedOkHttpClients.webSocketFactory(registry, new OkHttpClient());
+    WebSocket webSocket =
+        factory.newWebSocket(
+            new Request.Builder().url(server.url("/")).build(),
+            new WebSocketListener() {
+              @Override
+              public void onOpen(WebSocket webSocket, Response response) {
+                // Sent through the instrumented web socket the listener receives.
+                webSocket.send("hello");
+              }
+
+              @Override
+              public void onMessage(WebSocket webSocket, String text) {
+                received.countDown();
+              }
+
+              @Override
+              public void onClosed(WebSocket webSocket, int code, String reason) {
+                closed.countDown();
+              }
+            });
+
+    assertThat(received.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(registry.getCounters().get(metricId("open")).getCount()).isEqualTo(1);
+    assertThat(registry.getMeters().get(metricId("messages-sent")).getCount()).isEqualTo(1);
+    assertThat(registry.getMeters().get(metricId("bytes-sent")).getCount()).isEqualTo(5);
+    assertThat(registry.getMeters().get(metricId("messages-received")).getCount()).isEqualTo(1);
+    assertThat(registry.getMeters().get(metricId("bytes-received")).getCount()).isEqualTo(10);
+    assertThat(
+            registry.getHistograms().get(metricId("messages-received-size")).getSnapshot().getMax())
+        .isEqualTo(10);
+    assertThat(registry.getGauges().get(metricId("queue-size")).getValue()).isEqualTo(0L);
+
+    webSocket.close(1000, "bye");
+    assertThat(closed.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(registry.getCounters().get(metricId("open")).getCount()).isEqualTo(0);
+    assertThat(registry.getCounters().get(metricId("closes.1000")).getCount()).isEqualTo(1);
+    assertThat(registry.getTimers().get(metricId("duration")).getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void nonStandardCloseCodesAreCountedTogether() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      server.enqueue(
+          new MockResponse()
+              .withWebSocketUpgrade(
+                  new WebSocketListener() {
+                    @Override
+                    public void onClosing(WebSocket webSocket, int code, String reason) {
+                      webSocket.close(code, reason);
+                    }
+                  }));
+    }
+
+    CountDownLatch closed = new CountDownLatch(2);
+    WebSocket.Factory factory =
+        InstrumentedOkHttpClients.webSocketFactory(registry, new OkHttpClient());
+    WebSocketListener listener =
+        new WebSocketListener() {
+          @Override
+          public void onClosed(WebSocket webSocket, int code, String reason) {
+            closed.countDown();
+          }
+        };
+    Request request = new Request.Builder().url(server.url("/")).build();
+    factory.newWebSocket(request, listener).close(4000, "application");
+    factory.newWebSocket(request, listener).close(4001, "application");
+
+    assertThat(closed.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(registry.getCounters().get(metricId("closes.other")).getCount()).isEqualTo(2);
+    assertThat(registry.getCounters())
+        .doesNotContainKeys(metricId("closes.4000"), metricId("closes.4001"));
+  }
+
+  @Test
+  public void providedReservoirBacksTimersAndHistograms() {
+    AtomicInteger reservoirs = new AtomicInteger();
+    InstrumentedOkHttpClients.webSocketFactory(
+        registry,
+        new OkHttpClient(),
+        null,
+        () -> {
+          reservoirs.incrementAndGet();
+          return new SlidingWindowReservoir(16);
+        });
+
+    // The duration timer, and the sent and received message size histograms.
+    assertThat(reservoirs.get()).isEqualTo(3);
+    assertThat(registry.getTimers().get(metricId("duration")).getSnapshot().size()).isEqualTo(0);
+  }
+
+  private static String metricId(String metric) {
+    return MetricRegistry.name(WebSocket.class, metric);
+  }
+}
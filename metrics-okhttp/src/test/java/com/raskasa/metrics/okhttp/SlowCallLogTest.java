@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public final class SlowCallLogTest {
+  private final SlowCallLog log = new SlowCallLog(1, TimeUnit.SECONDS, 2);
+
+  @Test
+  public void onlyCallsOverTheThresholdAreSlow() {
+    assertThat(log.isSlow(TimeUnit.MILLISECONDS.toNanos(999))).isFalse();
+    assertThat(log.isSlow(TimeUnit.SECONDS.toNanos(1))).isTrue();
+  }
+
+  @Test
+  public void keepsTheMostRecentCallsFirst() {
+    SlowCall a = slowCall("a.example.com");
+    SlowCall b = slowCall("b.example.com");
+    SlowCall c = slowCall("c.example.com");
+
+    assertThat(log.slowCalls()).isEmpty();
+    log.add(a);
+    log.add(b);
+    assertThat(log.slowCalls()).containsExactly(b, a);
+    log.add(c);
+    assertThat(log.slowCalls()).containsExactly(c, b);
+    assertThat(log.capturedCount()).isEqualTo(3);
+  }
+
+  private static SlowCall slowCall(String host) {
+    return new SlowCall(host, 200, null, 0L, TimeUnit.SECONDS.toNanos(2), 0L, 0L, 0L, 0L, 0L, 0L);
+  }
+}